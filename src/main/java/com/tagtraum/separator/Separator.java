@@ -6,12 +6,14 @@
  */
 package com.tagtraum.separator;
 
+import com.tagtraum.separator.cli.BatchSeparator;
 import com.tagtraum.separator.ui.DropAreaWindow;
 
 import javax.swing.*;
 
 /**
- * Main class. Creates a {@link DropAreaWindow}.
+ * Main class. Creates a {@link DropAreaWindow}, or, if any arguments are given,
+ * runs the headless {@link BatchSeparator}.
  *
  * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
  */
@@ -19,7 +21,11 @@ public class Separator {
 
     private static final boolean MAC = System.getProperty("os.name").toLowerCase().contains("mac");
 
-    public static void main(final String[] args) {
+    public static void main(final String[] args) throws Exception {
+        if (args.length > 0) {
+            BatchSeparator.main(args);
+            return;
+        }
         SwingUtilities.invokeLater(() -> {
             if (MAC) {
                 System.setProperty("apple.laf.useScreenMenuBar", "true");
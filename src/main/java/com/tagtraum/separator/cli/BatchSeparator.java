@@ -0,0 +1,697 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.cli;
+
+import com.tagtraum.jipes.math.Matrix;
+import com.tagtraum.separator.dsp.BackgroundForegroundSeparation;
+import com.tagtraum.separator.dsp.Channel;
+import com.tagtraum.separator.dsp.HarmonicPercussiveSeparation;
+import com.tagtraum.separator.dsp.Song;
+import com.tagtraum.separator.dsp.SpectrogramCache;
+import com.tagtraum.separator.dsp.Storage;
+import com.tagtraum.separator.dsp.Synthesis;
+
+import javax.sound.sampled.AudioSystem;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Headless batch separator. Separates all given files, directories or glob patterns
+ * using a bounded pool of worker threads and prints per-file statistics at the end.
+ * <p>
+ * Run with {@code --help} to see all available options.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ * @see com.tagtraum.separator.ui.SeparateAction
+ */
+public class BatchSeparator {
+
+    private static final Logger LOG = Logger.getLogger(BatchSeparator.class.getName());
+    private static final Set<String> AUDIO_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "wav", "wave", "aif", "aiff", "aifc", "au", "snd", "mp3", "m4a", "mp4", "aac", "flac", "ogg"
+    ));
+
+    /**
+     * Stems that can be produced.
+     */
+    public enum Stem {
+        BACKGROUND, FOREGROUND, PERCUSSIVE, HARMONIC;
+
+        public String getFileSuffix() {
+            return "_" + name().toLowerCase() + ".wav";
+        }
+    }
+
+    private int hopSize = 512;
+    private int windowSize = 2048;
+    private int harmonicWindow = 325;
+    private int percussiveWindow = 1292;
+    private int k = 10;
+    private int jobs = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+    private File outputDirectory;
+    private EnumSet<Stem> stems = EnumSet.allOf(Stem.class);
+    private boolean streamingIngest;
+    private SpectrogramCache cache;
+    private boolean residual;
+    private Synthesis synthesis = Synthesis.GRIFFIN_LIM;
+    private Storage storage = Storage.HEAP;
+    private boolean quantizedMasks;
+    private boolean midMasks;
+    private boolean parallelChannels = true;
+    private float sampleRate = AudioSystem.NOT_SPECIFIED;
+    private int channels = AudioSystem.NOT_SPECIFIED;
+
+    public int getHopSize() {
+        return hopSize;
+    }
+
+    public void setHopSize(final int hopSize) {
+        this.hopSize = hopSize;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public void setWindowSize(final int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    public int getHarmonicWindow() {
+        return harmonicWindow;
+    }
+
+    public void setHarmonicWindow(final int harmonicWindow) {
+        this.harmonicWindow = harmonicWindow;
+    }
+
+    public int getPercussiveWindow() {
+        return percussiveWindow;
+    }
+
+    public void setPercussiveWindow(final int percussiveWindow) {
+        this.percussiveWindow = percussiveWindow;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public void setK(final int k) {
+        this.k = k;
+    }
+
+    public int getJobs() {
+        return jobs;
+    }
+
+    public void setJobs(final int jobs) {
+        this.jobs = jobs;
+    }
+
+    public File getOutputDirectory() {
+        return outputDirectory;
+    }
+
+    /**
+     * Directory to write the stems to.
+     *
+     * @param outputDirectory output directory or {@code null}, if stems should be placed next to the source file
+     */
+    public void setOutputDirectory(final File outputDirectory) {
+        this.outputDirectory = outputDirectory;
+    }
+
+    public boolean isStreamingIngest() {
+        return streamingIngest;
+    }
+
+    /**
+     * @param streamingIngest read files with bounded memory
+     * @see Song#setStreamingIngest(boolean)
+     */
+    public void setStreamingIngest(final boolean streamingIngest) {
+        this.streamingIngest = streamingIngest;
+    }
+
+    public SpectrogramCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @param cache spectrogram cache or {@code null}
+     * @see Song#setCache(SpectrogramCache)
+     */
+    public void setCache(final SpectrogramCache cache) {
+        this.cache = cache;
+    }
+
+    public boolean isResidual() {
+        return residual;
+    }
+
+    /**
+     * If set to {@code true} and both stems of a separation are selected, only the first one
+     * is synthesized and the second one is computed as residual.
+     *
+     * @param residual residual mode
+     * @see Song#write(File, File)
+     */
+    public void setResidual(final boolean residual) {
+        this.residual = residual;
+    }
+
+    public Synthesis getSynthesis() {
+        return synthesis;
+    }
+
+    /**
+     * @param synthesis how to synthesize the stems
+     * @see Song#setSynthesis(Synthesis)
+     */
+    public void setSynthesis(final Synthesis synthesis) {
+        this.synthesis = synthesis;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * @param storage where to keep magnitudes and masks
+     * @see Song#setStorage(Storage)
+     */
+    public void setStorage(final Storage storage) {
+        this.storage = storage;
+    }
+
+    public boolean isQuantizedMasks() {
+        return quantizedMasks;
+    }
+
+    /**
+     * @param quantizedMasks quantize masks to 8 bits
+     * @see Song#setQuantizedMasks(boolean)
+     */
+    public void setQuantizedMasks(final boolean quantizedMasks) {
+        this.quantizedMasks = quantizedMasks;
+    }
+
+    public boolean isMidMasks() {
+        return midMasks;
+    }
+
+    /**
+     * @param midMasks estimate one mask per file on the mid channel
+     * @see Song#setMidMasks(boolean)
+     */
+    public void setMidMasks(final boolean midMasks) {
+        this.midMasks = midMasks;
+    }
+
+    public boolean isParallelChannels() {
+        return parallelChannels;
+    }
+
+    /**
+     * @param parallelChannels compute masks of different channels concurrently
+     * @see Song#setParallelChannels(boolean)
+     */
+    public void setParallelChannels(final boolean parallelChannels) {
+        this.parallelChannels = parallelChannels;
+    }
+
+    public float getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @param sampleRate sample rate to resample to or {@link AudioSystem#NOT_SPECIFIED} to keep the native rate
+     * @see Song#setTargetSampleRate(float)
+     */
+    public void setSampleRate(final float sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * @param channels number of channels to mix to or {@link AudioSystem#NOT_SPECIFIED} to keep the native channels
+     * @see Song#setTargetChannels(int)
+     */
+    public void setChannels(final int channels) {
+        this.channels = channels;
+    }
+
+    public Set<Stem> getStems() {
+        return Collections.unmodifiableSet(stems);
+    }
+
+    public void setStems(final Set<Stem> stems) {
+        if (stems.isEmpty()) throw new IllegalArgumentException("At least one stem must be selected");
+        this.stems = EnumSet.copyOf(stems);
+    }
+
+    /**
+     * Separates the given files on a pool of {@link #getJobs()} worker threads.
+     *
+     * @param files audio files
+     * @return one result per file, in the order of the given files
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    public List<Result> separate(final List<File> files) throws InterruptedException {
+        final ExecutorService pool = Executors.newFixedThreadPool(jobs, new ThreadFactory() {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(final Runnable r) {
+                return new Thread(r, "BatchSeparator-" + (count++));
+            }
+        });
+        try {
+            final List<Future<Result>> futures = new ArrayList<>();
+            for (final File file : files) {
+                futures.add(pool.submit(() -> separate(file)));
+            }
+            final List<Result> results = new ArrayList<>();
+            for (final Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    // separate(File) catches everything, so this should not happen
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Separates a single file into the configured stems.
+     *
+     * @param file audio file
+     * @return result
+     */
+    public Result separate(final File file) {
+        final long start = System.nanoTime();
+        try {
+            final Song song = new Song();
+            song.setHopSizeInFrames(hopSize);
+            song.setSliceLengthInFrames(windowSize);
+            song.setStreamingIngest(streamingIngest);
+            song.setCache(cache);
+            song.setSynthesis(synthesis);
+            song.setStorage(storage);
+            song.setQuantizedMasks(quantizedMasks);
+            song.setMidMasks(midMasks);
+            song.setParallelChannels(parallelChannels);
+            song.setTargetSampleRate(sampleRate);
+            song.setTargetChannels(channels);
+            song.read(file);
+            final long frames = (long) song.getChannels().get(0).getMagnitudes().getNumberOfRows() * song.getEffectiveHopSizeInFrames();
+
+            if (stems.contains(Stem.BACKGROUND) || stems.contains(Stem.FOREGROUND)) {
+                write(song, new BackgroundForegroundSeparation(), file, Stem.BACKGROUND, Stem.FOREGROUND);
+            }
+            if (stems.contains(Stem.PERCUSSIVE) || stems.contains(Stem.HARMONIC)) {
+                final HarmonicPercussiveSeparation hpSeparationFunction = new HarmonicPercussiveSeparation();
+                hpSeparationFunction.setHarmonicWindow(harmonicWindow);
+                hpSeparationFunction.setPercussiveWindow(percussiveWindow);
+                hpSeparationFunction.setK(k);
+                write(song, hpSeparationFunction, file, Stem.PERCUSSIVE, Stem.HARMONIC);
+            }
+            return new Result(file, frames, song.getAudioFormat().getSampleRate(), System.nanoTime() - start, null);
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "Failed to separate " + file + ": " + e, e);
+            return new Result(file, 0, 0, System.nanoTime() - start, e);
+        }
+    }
+
+    private void write(final Song song, final Function<Channel, Matrix> separationFunction, final File file,
+                       final Stem first, final Stem second) throws IOException {
+        final Song[] songParts = song.separate(separationFunction);
+        if (residual && stems.contains(first) && stems.contains(second)) {
+            songParts[0].write(getOutputFile(file, first), getOutputFile(file, second));
+            return;
+        }
+        if (stems.contains(first)) songParts[0].write(getOutputFile(file, first));
+        if (stems.contains(second)) songParts[1].write(getOutputFile(file, second));
+    }
+
+    private File getOutputFile(final File file, final Stem stem) {
+        final String name = file.getName();
+        final int dot = name.lastIndexOf('.');
+        final String baseName = dot < 0 ? name : name.substring(0, dot);
+        final File directory = outputDirectory != null ? outputDirectory : file.getAbsoluteFile().getParentFile();
+        return new File(directory, baseName + stem.getFileSuffix());
+    }
+
+    /**
+     * Expands the given arguments to a list of audio files.
+     * Arguments may be files, directories (searched recursively for audio files) or
+     * glob patterns like {@code music/**.wav}.
+     *
+     * @param arguments files, directories or glob patterns
+     * @return sorted list of files without duplicates
+     * @throws IOException if a directory cannot be read
+     */
+    public static List<File> expand(final List<String> arguments) throws IOException {
+        final Set<File> files = new LinkedHashSet<>();
+        for (final String argument : arguments) {
+            final File file = new File(argument);
+            if (file.isFile()) {
+                files.add(file);
+            } else if (file.isDirectory()) {
+                files.addAll(find(file.toPath(), BatchSeparator::isAudioFile));
+            } else if (isGlob(argument)) {
+                final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + argument);
+                files.addAll(find(getGlobBase(argument), path -> matcher.matches(path.normalize())));
+            } else {
+                throw new IOException("No such file or directory: " + argument);
+            }
+        }
+        return new ArrayList<>(files);
+    }
+
+    private static List<File> find(final Path base, final java.util.function.Predicate<Path> filter) throws IOException {
+        try (final Stream<Path> paths = Files.walk(base)) {
+            return paths
+                    .filter(Files::isRegularFile)
+                    .filter(filter)
+                    .sorted()
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static boolean isGlob(final String argument) {
+        return argument.indexOf('*') >= 0 || argument.indexOf('?') >= 0
+                || argument.indexOf('[') >= 0 || argument.indexOf('{') >= 0;
+    }
+
+    private static Path getGlobBase(final String glob) {
+        // base directory consists of all leading path elements without wildcards
+        int wildcard = 0;
+        while (wildcard < glob.length() && "*?[{".indexOf(glob.charAt(wildcard)) < 0) wildcard++;
+        final int separator = Math.max(glob.lastIndexOf('/', wildcard), glob.lastIndexOf(File.separatorChar, wildcard));
+        if (separator < 0) return Paths.get(".");
+        if (separator == 0) return Paths.get(glob.substring(0, 1));
+        return Paths.get(glob.substring(0, separator));
+    }
+
+    private static boolean isAudioFile(final Path path) {
+        final String name = path.getFileName().toString();
+        final int dot = name.lastIndexOf('.');
+        if (dot < 0) return false;
+        // don't separate what we have produced ourselves
+        for (final Stem stem : Stem.values()) {
+            if (name.endsWith(stem.getFileSuffix())) return false;
+        }
+        return AUDIO_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase());
+    }
+
+    /**
+     * Prints a per-file and total report.
+     *
+     * @param results results
+     * @param out stream to print to
+     */
+    public static void printReport(final List<Result> results, final PrintStream out) {
+        long totalFrames = 0;
+        long totalNanos = 0;
+        double totalSeconds = 0;
+        out.println(String.format("%-50s %10s %12s %12s %10s", "File", "Time (s)", "Frames", "Frames/s", "Realtime"));
+        for (final Result result : results) {
+            if (result.isSuccess()) {
+                out.println(String.format("%-50s %10.2f %12d %12.0f %9.1fx", abbreviate(result.getFile().getName(), 50),
+                        result.getSeconds(), result.getFrames(), result.getFramesPerSecond(), result.getRealtimeFactor()));
+                totalFrames += result.getFrames();
+                totalNanos += result.getNanos();
+                totalSeconds += result.getFrames() / result.getSampleRate();
+            } else {
+                out.println(String.format("%-50s %10.2f %12s %12s %10s", abbreviate(result.getFile().getName(), 50),
+                        result.getSeconds(), "-", "-", "FAILED"));
+            }
+        }
+        final long failed = results.stream().filter(r -> !r.isSuccess()).count();
+        out.println(String.format("%d file(s), %d failed. Audio: %.1f s, summed wall time: %.1f s, %.0f frames/s per job",
+                results.size(), failed, totalSeconds, totalNanos / 1e9, totalNanos == 0 ? 0 : totalFrames / (totalNanos / 1e9)));
+    }
+
+    private static String abbreviate(final String s, final int length) {
+        return s.length() <= length ? s : "..." + s.substring(s.length() - length + 3);
+    }
+
+    private static void printUsage(final PrintStream out) {
+        out.println("Usage: java -cp separator.jar " + BatchSeparator.class.getName() + " [options] <file|directory|glob>...");
+        out.println();
+        out.println("Options:");
+        out.println("  --hop-size <frames>           Hop size at 44.1kHz, power of 2 (default: 512)");
+        out.println("  --window-size <frames>        Window size at 44.1kHz, power of 2, >= hop size (default: 2048)");
+        out.println("  --sample-rate <Hz>            Resample to this rate (default: native rate)");
+        out.println("  --channels <n>                Mix to this number of channels (default: native channels)");
+        out.println("  --harmonic-window <ms>        Harmonic median window for h/p separation (default: 325)");
+        out.println("  --percussive-window <Hz>      Percussive median window for h/p separation (default: 1292)");
+        out.println("  --k <k>                       Harm./perc. separation harshness (default: 10)");
+        out.println("  --stems <stem,...>            Any of background, foreground, percussive, harmonic (default: all)");
+        out.println("  --output <directory>          Output directory (default: next to source file)");
+        out.println("  --jobs <n>                    Number of files to process at once (default: cores/4)");
+        out.println("  --streaming                   Compute magnitudes while decoding, reduces peak memory");
+        out.println("  --residual                    Compute second stem of each separation by subtraction (faster)");
+        out.println("  --original-phase              Synthesize with the original phase instead of Griffin-Lim (faster)");
+        out.println("  --storage <heap|mapped|half>  Keep magnitudes and masks on the heap, in mapped files or as 16 bit floats (default: heap)");
+        out.println("  --quantize-masks              Store masks with 8 bits per value");
+        out.println("  --mid-masks                   Compute one mask per file from the mid channel (faster)");
+        out.println("  --sequential-channels         Compute masks of one channel at a time, reduces peak memory");
+        out.println("  --cache <directory>           Cache spectrograms in this directory to speed up repeated runs");
+        out.println("  --cache-size <MB>             Max size of the spectrogram cache (default: 2048)");
+        out.println("  --quiet                       Only log warnings and errors");
+        out.println("  --help                        Print this message");
+    }
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        final BatchSeparator batchSeparator = new BatchSeparator();
+        final List<String> inputs = new ArrayList<>();
+        File cacheDirectory = null;
+        long cacheSize = 2048;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
+                if (!arg.startsWith("--")) {
+                    inputs.add(arg);
+                    continue;
+                }
+                switch (arg) {
+                    case "--help":
+                        printUsage(System.out);
+                        return;
+                    case "--quiet":
+                        Logger.getLogger("").setLevel(Level.WARNING);
+                        break;
+                    case "--streaming":
+                        batchSeparator.setStreamingIngest(true);
+                        break;
+                    case "--residual":
+                        batchSeparator.setResidual(true);
+                        break;
+                    case "--original-phase":
+                        batchSeparator.setSynthesis(Synthesis.ORIGINAL_PHASE);
+                        break;
+                    case "--storage":
+                        batchSeparator.setStorage(Storage.valueOf(value(args, ++i, arg).trim().toUpperCase()));
+                        break;
+                    case "--quantize-masks":
+                        batchSeparator.setQuantizedMasks(true);
+                        break;
+                    case "--mid-masks":
+                        batchSeparator.setMidMasks(true);
+                        break;
+                    case "--sequential-channels":
+                        batchSeparator.setParallelChannels(false);
+                        break;
+                    case "--hop-size":
+                        batchSeparator.setHopSize(intValue(args, ++i, arg));
+                        break;
+                    case "--window-size":
+                        batchSeparator.setWindowSize(intValue(args, ++i, arg));
+                        break;
+                    case "--sample-rate":
+                        batchSeparator.setSampleRate(intValue(args, ++i, arg));
+                        break;
+                    case "--channels":
+                        batchSeparator.setChannels(intValue(args, ++i, arg));
+                        break;
+                    case "--harmonic-window":
+                        batchSeparator.setHarmonicWindow(intValue(args, ++i, arg));
+                        break;
+                    case "--percussive-window":
+                        batchSeparator.setPercussiveWindow(intValue(args, ++i, arg));
+                        break;
+                    case "--k":
+                        batchSeparator.setK(intValue(args, ++i, arg));
+                        break;
+                    case "--jobs":
+                        batchSeparator.setJobs(intValue(args, ++i, arg));
+                        break;
+                    case "--output":
+                        batchSeparator.setOutputDirectory(new File(value(args, ++i, arg)));
+                        break;
+                    case "--cache":
+                        cacheDirectory = new File(value(args, ++i, arg));
+                        break;
+                    case "--cache-size":
+                        cacheSize = intValue(args, ++i, arg);
+                        if (cacheSize <= 0) throw new IllegalArgumentException("Cache size must be positive: " + cacheSize);
+                        break;
+                    case "--stems":
+                        final EnumSet<Stem> stems = EnumSet.noneOf(Stem.class);
+                        for (final String stem : value(args, ++i, arg).split(",")) {
+                            stems.add(Stem.valueOf(stem.trim().toUpperCase()));
+                        }
+                        batchSeparator.setStems(stems);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            }
+            if (cacheDirectory != null) {
+                batchSeparator.setCache(new SpectrogramCache(cacheDirectory, cacheSize * 1024 * 1024));
+            }
+            batchSeparator.validate();
+            if (inputs.isEmpty()) throw new IllegalArgumentException("No input files given");
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println();
+            printUsage(System.err);
+            System.exit(1);
+            return;
+        }
+
+        final List<File> files = expand(inputs);
+        if (batchSeparator.getOutputDirectory() != null && !batchSeparator.getOutputDirectory().isDirectory()
+                && !batchSeparator.getOutputDirectory().mkdirs()) {
+            throw new IOException("Failed to create output directory " + batchSeparator.getOutputDirectory());
+        }
+        final long start = System.nanoTime();
+        final List<Result> results = batchSeparator.separate(files);
+        printReport(results, System.out);
+        System.out.println(String.format("Total wall time with %d job(s): %.1f s", batchSeparator.getJobs(), (System.nanoTime() - start) / 1e9));
+        if (results.stream().anyMatch(r -> !r.isSuccess())) System.exit(2);
+    }
+
+    private void validate() {
+        if (Integer.bitCount(hopSize) != 1) throw new IllegalArgumentException("Hop size must be a power of 2: " + hopSize);
+        if (Integer.bitCount(windowSize) != 1) throw new IllegalArgumentException("Window size must be a power of 2: " + windowSize);
+        if (windowSize < hopSize) throw new IllegalArgumentException("Window size must not be smaller than hop size");
+        if (harmonicWindow <= 0) throw new IllegalArgumentException("Harmonic window must be positive: " + harmonicWindow);
+        if (percussiveWindow <= 0) throw new IllegalArgumentException("Percussive window must be positive: " + percussiveWindow);
+        if (k <= 0) throw new IllegalArgumentException("k must be positive: " + k);
+        if (jobs <= 0) throw new IllegalArgumentException("Number of jobs must be positive: " + jobs);
+    }
+
+    private static String value(final String[] args, final int i, final String option) {
+        if (i >= args.length) throw new IllegalArgumentException("Missing value for " + option);
+        return args[i];
+    }
+
+    private static int intValue(final String[] args, final int i, final String option) {
+        final String value = value(args, i, option);
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number for " + option + ": " + value);
+        }
+    }
+
+    /**
+     * Outcome of separating one file.
+     */
+    public static class Result {
+
+        private final File file;
+        private final long frames;
+        private final float sampleRate;
+        private final long nanos;
+        private final Exception exception;
+
+        public Result(final File file, final long frames, final float sampleRate, final long nanos, final Exception exception) {
+            this.file = file;
+            this.frames = frames;
+            this.sampleRate = sampleRate;
+            this.nanos = nanos;
+            this.exception = exception;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return number of audio frames (samples per channel) in the source file
+         */
+        public long getFrames() {
+            return frames;
+        }
+
+        public float getSampleRate() {
+            return sampleRate;
+        }
+
+        /**
+         * @return wall time in nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        public double getSeconds() {
+            return nanos / 1e9;
+        }
+
+        public double getFramesPerSecond() {
+            return nanos == 0 ? 0 : frames / getSeconds();
+        }
+
+        /**
+         * @return seconds of audio processed per second of wall time
+         */
+        public double getRealtimeFactor() {
+            return sampleRate == 0 ? 0 : getFramesPerSecond() / sampleRate;
+        }
+
+        public Exception getException() {
+            return exception;
+        }
+
+        public boolean isSuccess() {
+            return exception == null;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "file=" + file +
+                    ", frames=" + frames +
+                    ", seconds=" + getSeconds() +
+                    ", exception=" + exception +
+                    '}';
+        }
+    }
+}
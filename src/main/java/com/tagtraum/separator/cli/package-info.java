@@ -0,0 +1,6 @@
+/**
+ * Command line (headless) related classes.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+package com.tagtraum.separator.cli;
\ No newline at end of file
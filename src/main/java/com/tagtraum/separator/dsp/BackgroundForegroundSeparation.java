@@ -6,10 +6,11 @@
  */
 package com.tagtraum.separator.dsp;
 
-import com.tagtraum.jipes.math.*;
+import com.tagtraum.jipes.math.Matrix;
 
-import java.util.*;
+import java.util.BitSet;
 import java.util.function.Function;
+import java.util.stream.IntStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -24,13 +25,17 @@ import java.util.logging.Logger;
 public class BackgroundForegroundSeparation implements Function<Channel, Matrix> {
 
     private static final Logger LOG = Logger.getLogger(BackgroundForegroundSeparation.class.getName());
+    /**
+     * Frequencies below this always belong to the background (5 bins at 44.1kHz and a 2048 samples window).
+     */
+    private static final double BACKGROUND_BELOW_HZ = 110.0;
 
     @Override
     public Matrix apply(final Channel channel) {
         final Song song = channel.getSong();
 
         final double bpm = 100.0;
-        final double hopDurationMilliSecond = song.getHopSizeInFrames() * 1000.0 / song.getAudioFormat().getSampleRate();
+        final double hopDurationMilliSecond = song.getEffectiveHopSizeInFrames() * 1000.0 / song.getAudioFormat().getSampleRate();
         final double beatPerMilliSecond = bpm / 60.0 / 1000.0;
         final double beatsPerFrame = beatPerMilliSecond * hopDurationMilliSecond;
         final double framesPerBeat = 1.0 / beatsPerFrame;
@@ -47,114 +52,186 @@ public class BackgroundForegroundSeparation implements Function<Channel, Matrix>
         final SelfSimilarityFunction selfSimilarityFunction = new SelfSimilarityFunction();
         selfSimilarityFunction.setBandwidth(maxDistance);
 
-        final Matrix selfSimilarityMatrix = selfSimilarityFunction.apply(channel);
+        // only the maxSimilarRows best rows of each row are ever used, so get them as compact lists
+        final NeighbourLists neighbourLists = selfSimilarityFunction.neighbours(channel, minDistance, maxSimilarRows);
         final Matrix magnitudes = channel.getMagnitudes();
-
-        final MutableMatrix mask = new FullMatrix(magnitudes.getNumberOfRows(), magnitudes.getNumberOfColumns(),
-                new FloatBackingBuffer(true), false);
-        final Set<Integer> maskSet = new HashSet<>();
-
-        for (int row = 0; row < magnitudes.getNumberOfRows(); row++) {
-            if (maskSet.contains(row)) continue;
-            // find similar rows
-            final List<SimilarRow> similarRows = new ArrayList<>();
-            similarRows.add(new SimilarRow(row, 1));
-            for (int otherRow = 0; otherRow < magnitudes.getNumberOfRows(); otherRow++) {
-                final int distance = Math.abs(row - otherRow);
-                if (distance < minDistance) continue;
-                if (distance > maxDistance) continue;
-                final float similarity = selfSimilarityMatrix.get(row, otherRow);
-                if (similarity > 0) {
-                    similarRows.add(new SimilarRow(otherRow, similarity));
-                }
-            }
-            //Collections.sort(similarRows, (o1, o2) -> Integer.compare(o1.row, o2.row));
-            //System.out.println("Similar: " + similarRows);
-
-            Collections.sort(similarRows);
-            Collections.reverse(similarRows);
-            // trim similarities to maxSimilarRows
-            while (similarRows.size() > maxSimilarRows) {
-                similarRows.remove(similarRows.size() - 1);
+        final int rows = magnitudes.getNumberOfRows();
+        final int columns = magnitudes.getNumberOfColumns();
+
+        final DenseMatrix mask = song.getStorage().createMatrix(rows, columns);
+        final int backgroundBins = (int) Math.round(BACKGROUND_BELOW_HZ * song.getEffectiveSliceLengthInFrames() / song.getAudioFormat().getSampleRate());
+
+        // phase 1: find the similar rows of each row, independently of each other
+        final int[] similarRows = new int[rows * maxSimilarRows];
+        final int[] similarRowCounts = new int[rows];
+        IntStream.range(0, rows)
+                .parallel()
+                .forEach(
+                        (row) -> similarRowCounts[row] = similarRows(neighbourLists, row, similarRows, row * maxSimilarRows, maxSimilarRows)
+                );
+
+        // phase 2: cheap sequential merge. A row not yet masked by a previous group leads a new group.
+        // Rows occurring in several groups get their mask values from the last of these groups.
+        final BitSet masked = new BitSet(rows);
+        final int[] owners = new int[rows];
+        final int[] leaders = new int[rows];
+        int leaderCount = 0;
+        for (int row = 0; row < rows; row++) {
+            if (masked.get(row)) continue;
+            leaders[leaderCount++] = row;
+            for (int i = 0; i < similarRowCounts[row]; i++) {
+                final int similarRow = similarRows[row * maxSimilarRows + i];
+                masked.set(similarRow);
+                owners[similarRow] = row;
             }
-            //System.out.println("Top Sim: " + similarRows);
-            // most similar is now top.
-            // create a median magnitude frame from the top z magnitudes
-            final float[] medians = new float[magnitudes.getNumberOfColumns()];
-            for (int column = 0; column < magnitudes.getNumberOfColumns(); column++) {
-                final float[] region = new float[similarRows.size()];
-                for (int i = 0; i < region.length; i++) {
-                    final int r = similarRows.get(i).row;
-                    region[i] = magnitudes.get(r, column);
-                }
-                Arrays.sort(region);
-                medians[column] = Floats.median(region);
-            }
-            // compute mask
-            for (final SimilarRow similarRow : similarRows) {
-                maskSet.add(similarRow.row);
-                final float[] original = magnitudes.getRow(similarRow.row);
-                float maskedPower = 0;
-                float totalPower = 0;
-                for (int column = 0; column < original.length; column++) {
-                    //final float min = Math.min(medians[column], original[column]);
-                    final float min = medians[column];
-                    // TODO: Default to 0, if we don't have a magnitude? Does it matter at all?
-                    float maskValue = original[column] == 0 ? 0 : min / original[column];
-                    maskValue = Math.min(1, maskValue);
-                    if (column < 5) maskValue = 1;
-                /*
-                if (maskValue < 0.25) maskValue = 0;
-                if (maskValue > 0.75) maskValue = 1;
-                */
-                    mask.set(similarRow.row, column, maskValue);
-                    final float power = original[column] * original[column];
-                    maskedPower += maskValue * power;
-                    totalPower += power;
-                }
-                similarRow.maskedPower = maskedPower / (totalPower == 0 ? 1 : totalPower);
-            }
-            // find lowest/highest maskedPower and make it
-        /*
-        Collections.sort(similarRows, (o1, o2) -> Float.compare(o2.maskedPower, o1.maskedPower));
-        final SimilarRow leastMaskedPower = similarRows.get(0);
-        final float[] leastMaskedPowerSamples = samples.getRow(leastMaskedPower.row);
-        for (final SimilarRow similarRow : similarRows) {
-            backForeMatrix.setRow(similarRow.row, leastMaskedPowerSamples);
-        }
-        */
         }
+
+        // phase 3: per group, create a median magnitude frame from the top z magnitudes
+        // and compute the mask for the rows it owns. Each mask row is written by exactly one group.
+        final int leadersPerBlock = Song.getBlockSize(leaderCount);
+        final int leaderTotal = leaderCount;
+        IntStream.range(0, (leaderCount + leadersPerBlock - 1) / leadersPerBlock)
+                .parallel()
+                .forEach(
+                        (block) -> {
+                            // scratch is allocated per block, so that nothing outlives this call
+                            final Scratch buffers = new Scratch(maxSimilarRows, columns);
+                            final int end = Math.min(leaderTotal, (block + 1) * leadersPerBlock);
+                            for (int leaderIndex = block * leadersPerBlock; leaderIndex < end; leaderIndex++) {
+                                final int leader = leaders[leaderIndex];
+                                final int offset = leader * maxSimilarRows;
+                                final int similarRowCount = similarRowCounts[leader];
+                                for (int i = 0; i < similarRowCount; i++) {
+                                    copyRow(magnitudes, similarRows[offset + i], buffers.magnitudes, i * columns);
+                                }
+                                for (int column = 0; column < columns; column++) {
+                                    for (int i = 0; i < similarRowCount; i++) {
+                                        buffers.region[i] = buffers.magnitudes[i * columns + column];
+                                    }
+                                    buffers.medians[column] = median(buffers.region, similarRowCount);
+                                }
+                                for (int i = 0; i < similarRowCount; i++) {
+                                    final int similarRow = similarRows[offset + i];
+                                    if (owners[similarRow] != leader) continue;
+                                    computeMaskRow(buffers.magnitudes, i * columns, buffers.medians, buffers.mask, columns, backgroundBins);
+                                    mask.setRow(similarRow, buffers.mask, 0);
+                                }
+                            }
+                        }
+                );
         return mask;
-        /*
-        final MutableMatrix mask2 = new FullMatrix(magnitudes.getNumberOfRows(), magnitudes.getNumberOfColumns(),
-                new FloatBackingBuffer(true), false);
-        mask2.fill(1f);
-        return mask2;
-        */
     }
 
-    private static class SimilarRow implements Comparable<SimilarRow> {
-        private int row;
-        private float similarity;
-        private float maskedPower;
+    /**
+     * Collects the given row and its most similar neighbours, most similar first.
+     * The row itself has similarity {@code 1} and ranks below equally similar neighbours.
+     *
+     * @param neighbourLists neighbour lists
+     * @param row row
+     * @param similarRows array to collect rows in
+     * @param offset index of the first collected row
+     * @param maxSimilarRows max number of rows to collect
+     * @return number of collected rows
+     */
+    private static int similarRows(final NeighbourLists neighbourLists, final int row,
+                                   final int[] similarRows, final int offset, final int maxSimilarRows) {
+        final int neighbourCount = neighbourLists.getCount(row);
+        int count = 0;
+        int i = 0;
+        while (i < neighbourCount && neighbourLists.getSimilarity(row, i) >= 1 && count < maxSimilarRows) {
+            similarRows[offset + count++] = neighbourLists.getNeighbour(row, i++);
+        }
+        if (count < maxSimilarRows) similarRows[offset + count++] = row;
+        while (i < neighbourCount && count < maxSimilarRows) {
+            similarRows[offset + count++] = neighbourLists.getNeighbour(row, i++);
+        }
+        return count;
+    }
+
+    private static void copyRow(final Matrix magnitudes, final int row, final float[] dest, final int offset) {
+        if (magnitudes instanceof DenseMatrix) {
+            ((DenseMatrix) magnitudes).copyRow(row, dest, offset);
+        } else {
+            final float[] values = magnitudes.getRow(row);
+            System.arraycopy(values, 0, dest, offset, values.length);
+        }
+    }
 
-        public SimilarRow(final int row, final float similarity) {
-            this.row = row;
-            this.similarity = similarity;
+    private static void computeMaskRow(final float[] original, final int originalOffset, final float[] medians,
+                                       final float[] mask, final int columns, final int backgroundBins) {
+        for (int column = 0; column < columns; column++) {
+            final float magnitude = original[originalOffset + column];
+            // TODO: Default to 0, if we don't have a magnitude? Does it matter at all?
+            float maskValue = magnitude == 0 ? 0 : medians[column] / magnitude;
+            maskValue = Math.min(1, maskValue);
+            if (column < backgroundBins) maskValue = 1;
+            mask[column] = maskValue;
         }
+    }
 
-        @Override
-        public int compareTo(final SimilarRow o) {
-            return Float.compare(similarity, o.similarity);
+    /**
+     * Median of the first {@code length} values, found by quickselect.
+     * Like {@link com.tagtraum.jipes.math.Floats#median(float[])}, the two middle values are averaged for even lengths.
+     * The order of the values is changed.
+     *
+     * @param values values
+     * @param length number of values
+     * @return median
+     */
+    static float median(final float[] values, final int length) {
+        final int half = length / 2;
+        select(values, length, half);
+        if (length % 2 != 0) return values[half];
+        // after selection, the lower middle is the max of the lower half
+        float lower = values[0];
+        for (int i = 1; i < half; i++) {
+            if (values[i] > lower) lower = values[i];
         }
+        return (lower + values[half]) / 2f;
+    }
+
+    /**
+     * Partially orders the first {@code length} values so that {@code values[k]} is
+     * the value sorting would put there, with no larger values before and no smaller values after it.
+     */
+    private static void select(final float[] values, final int length, final int k) {
+        int left = 0;
+        int right = length - 1;
+        while (right > left) {
+            final float pivot = values[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[i] < pivot) i++;
+                while (values[j] > pivot) j--;
+                if (i <= j) {
+                    final float tmp = values[i];
+                    values[i] = values[j];
+                    values[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) right = j;
+            else if (k >= i) left = i;
+            else return;
+        }
+    }
 
-        @Override
-        public String toString() {
-            return "SimilarRow{" +
-                    "row=" + row +
-                    ", sim=" + similarity +
-                    ", maskedPow=" + maskedPower +
-                    '}';
+    /**
+     * Scratch buffers of one block of groups.
+     */
+    private static class Scratch {
+        private final float[] magnitudes;
+        private final float[] region;
+        private final float[] medians;
+        private final float[] mask;
+
+        private Scratch(final int maxSimilarRows, final int columns) {
+            this.magnitudes = new float[maxSimilarRows * columns];
+            this.region = new float[maxSimilarRows];
+            this.medians = new float[columns];
+            this.mask = new float[columns];
         }
     }
 
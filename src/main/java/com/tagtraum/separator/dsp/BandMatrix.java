@@ -0,0 +1,156 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import com.tagtraum.jipes.math.AbstractMatrix;
+
+/**
+ * Symmetric, square band matrix. Only the main diagonal and the {@code bandwidth - 1}
+ * diagonals above it are stored, all values further away from the main diagonal are zero.
+ * <p>
+ * Values are stored diagonal by diagonal: diagonal {@code d} (i.e. all cells {@code (i, i + d)}
+ * and {@code (i + d, i)}) occupies the contiguous range
+ * {@code [d * size, d * size + size - d)}, starting with {@code i = 0}.
+ * <p>
+ * Values are kept in a single heap array or, with {@link Storage#MAPPED} and thus also for bands with
+ * more than {@code 2^31} cells, in a {@link FloatStore} addressed by {@code long} offsets.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class BandMatrix extends AbstractMatrix {
+
+    private final int size;
+    private final int bandwidth;
+    private final float[] data;
+    private final FloatStore store;
+
+    /**
+     * Creates a new band matrix on the heap.
+     *
+     * @param size number of rows and columns
+     * @param bandwidth number of stored diagonals, incl. the main diagonal
+     */
+    public BandMatrix(final int size, final int bandwidth) {
+        this(size, bandwidth, Storage.HEAP);
+    }
+
+    /**
+     * Creates a new band matrix.
+     *
+     * @param size number of rows and columns
+     * @param bandwidth number of stored diagonals, incl. the main diagonal
+     * @param storage where to keep the values. {@link Storage#HALF} is treated like {@link Storage#HEAP},
+     *                as ranking similarities requires full precision
+     */
+    public BandMatrix(final int size, final int bandwidth, final Storage storage) {
+        if (bandwidth < 1) throw new IllegalArgumentException("Bandwidth must be positive: " + bandwidth);
+        this.size = size;
+        this.bandwidth = Math.min(bandwidth, Math.max(1, size));
+        // ranking similarities requires full precision
+        this.store = (storage.isFullPrecision() ? storage : Storage.HEAP).createStore((long) size * this.bandwidth);
+        // access heap arrays directly
+        this.data = store.getArray();
+    }
+
+    public int getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * Backing array.
+     *
+     * @return backing array or {@code null}, if the values are not kept on the heap
+     * @see #getDiagonalOffset(int)
+     */
+    public float[] getData() {
+        return data;
+    }
+
+    /**
+     * @param diagonal diagonal, {@code 0} being the main diagonal
+     * @return offset of the first value of the diagonal in the backing storage
+     */
+    public long getDiagonalOffset(final int diagonal) {
+        return (long) diagonal * size;
+    }
+
+    /**
+     * Copies a diagonal, i.e. {@code size - diagonal} values, into the given array.
+     *
+     * @param diagonal diagonal, {@code 0} being the main diagonal
+     * @param dest destination
+     * @param offset offset into the destination
+     */
+    public void copyDiagonal(final int diagonal, final float[] dest, final int offset) {
+        if (data != null) System.arraycopy(data, (int) getDiagonalOffset(diagonal), dest, offset, size - diagonal);
+        else store.get(getDiagonalOffset(diagonal), dest, offset, size - diagonal);
+    }
+
+    /**
+     * Sets a diagonal, i.e. {@code size - diagonal} values.
+     *
+     * @param diagonal diagonal, {@code 0} being the main diagonal
+     * @param values source
+     * @param offset offset into the source
+     */
+    public void setDiagonal(final int diagonal, final float[] values, final int offset) {
+        if (data != null) System.arraycopy(values, offset, data, (int) getDiagonalOffset(diagonal), size - diagonal);
+        else store.set(getDiagonalOffset(diagonal), values, offset, size - diagonal);
+    }
+
+    @Override
+    public float get(final int row, final int column) {
+        final int diagonal = row > column ? row - column : column - row;
+        if (diagonal >= bandwidth) return 0f;
+        final long index = getDiagonalOffset(diagonal) + Math.min(row, column);
+        return data != null ? data[(int) index] : store.get(index);
+    }
+
+    /**
+     * Sets a value. Because the matrix is symmetric, this also sets {@code (column, row)}.
+     *
+     * @param row row
+     * @param column column
+     * @param value value
+     * @throws IndexOutOfBoundsException if the cell lies outside of the band
+     */
+    public void set(final int row, final int column, final float value) {
+        final int diagonal = row > column ? row - column : column - row;
+        if (diagonal >= bandwidth) throw new IndexOutOfBoundsException("Cell (" + row + ", " + column + ") is outside of band " + bandwidth);
+        final long index = getDiagonalOffset(diagonal) + Math.min(row, column);
+        if (data != null) data[(int) index] = value;
+        else store.set(index, value);
+    }
+
+    @Override
+    public int getNumberOfRows() {
+        return size;
+    }
+
+    @Override
+    public int getNumberOfColumns() {
+        return size;
+    }
+
+    @Override
+    public boolean isZeroPadded() {
+        return false;
+    }
+
+    @Override
+    protected float get(final int index) {
+        return data != null ? data[index] : store.get(index);
+    }
+
+    @Override
+    public String toString() {
+        return "BandMatrix{" +
+                "size=" + size +
+                ", bandwidth=" + bandwidth +
+                '}';
+    }
+}
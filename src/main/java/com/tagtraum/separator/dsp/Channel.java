@@ -16,7 +16,6 @@ import com.tagtraum.jipes.math.Transform;
 
 import javax.sound.sampled.AudioFormat;
 import java.util.function.DoubleBinaryOperator;
-import java.util.function.DoubleUnaryOperator;
 
 /**
  * Channel. Multiple channels belong to one {@link Song}.
@@ -26,16 +25,40 @@ import java.util.function.DoubleUnaryOperator;
  */
 public class Channel {
 
-    private final Matrix samples;
+    private static final ThreadLocal<float[]> MASKED_MAGNITUDES = ThreadLocal.withInitial(() -> new float[0]);
+    private static final ThreadLocal<float[]> MASK_ROW = ThreadLocal.withInitial(() -> new float[0]);
+
+    private final WindowedSamples samples;
     private final Matrix magnitudes;
+    private final Matrix mask;
+    private final boolean inverseMask;
     private final Song song;
     private final OLA olaProcessor;
 
-    public Channel(final Song song, final Matrix magnitudes, final Matrix samples) {
+    public Channel(final Song song, final Matrix magnitudes, final WindowedSamples samples) {
+        this(song, magnitudes, null, false, samples);
+    }
+
+    /**
+     * Creates a channel whose magnitudes are the given magnitudes multiplied by a mask.
+     * The product is never materialized, but computed row by row during synthesis.
+     *
+     * @param song song
+     * @param magnitudes unmasked magnitudes
+     * @param mask mask or {@code null}
+     * @param inverseMask if {@code true}, multiply with {@code |mask - 1|} instead of the mask
+     * @param samples raw samples, windows are cut from them on demand
+     */
+    private Channel(final Song song, final Matrix magnitudes, final Matrix mask, final boolean inverseMask, final WindowedSamples samples) {
+        if (mask != null && (mask.getNumberOfColumns() != magnitudes.getNumberOfColumns() || mask.getNumberOfRows() != magnitudes.getNumberOfRows())) {
+            throw new IllegalArgumentException("Matrices must have same dimensions");
+        }
         this.magnitudes = magnitudes;
+        this.mask = mask;
+        this.inverseMask = inverseMask;
         this.samples = samples;
         this.song = song;
-        this.olaProcessor = new OLA(song.getSliceLengthInFrames(), song.getHopSizeInFrames());
+        this.olaProcessor = new OLA(song.getEffectiveSliceLengthInFrames(), song.getEffectiveHopSizeInFrames());
     }
 
     /**
@@ -77,43 +100,6 @@ public class Channel {
         };
     }
 
-    /**
-     * Apply the operator element-wise.
-     *
-     * @param m Matrix m
-     * @param operator element-wise operator
-     * @return result
-     */
-    private static Matrix apply(final Matrix m, final DoubleUnaryOperator operator) {
-        return new AbstractMatrix() {
-
-            @Override
-            public float get(final int row, final int column) {
-                return (float)operator.applyAsDouble(m.get(row, column));
-            }
-
-            @Override
-            public int getNumberOfRows() {
-                return m.getNumberOfRows();
-            }
-
-            @Override
-            public int getNumberOfColumns() {
-                return m.getNumberOfColumns();
-            }
-
-            @Override
-            public boolean isZeroPadded() {
-                return m.isZeroPadded();
-            }
-
-            @Override
-            protected float get(final int index) {
-                throw new UnsupportedOperationException();
-            }
-        };
-    }
-
     public OLA getOlaProcessor() {
         return olaProcessor;
     }
@@ -122,16 +108,48 @@ public class Channel {
         return song;
     }
 
+    /**
+     * Magnitudes of this channel. For channels created by {@link #separate(Matrix)},
+     * this is a view that multiplies the original magnitudes with the mask on access.
+     *
+     * @return magnitudes
+     */
     public Matrix getMagnitudes() {
-        return magnitudes;
+        if (mask == null) return magnitudes;
+        if (mask instanceof QuantizedMask) return apply(magnitudes, mask, (m, d) -> (float) m * (float) d);
+        return inverseMask
+                ? apply(magnitudes, mask, (m, d) -> m * (float) Math.abs(d - 1.0))
+                : apply(magnitudes, mask, (m, d) -> (float) m * (float) d);
     }
 
-    public Matrix getSamples() {
+    /**
+     * Raw samples of this channel. Each row is an analysis window, cut on demand.
+     *
+     * @return samples
+     */
+    public WindowedSamples getSamples() {
         return samples;
     }
 
+    /**
+     * Synthesizes a frame using the song's {@link Song#getSynthesis() synthesis}.
+     *
+     * @param row row
+     * @return frame
+     */
     public AudioBuffer synthesize(final int row) {
-        final float[] magBuffer = magnitudes.getRow(row);
+        return synthesize(row, song.getSynthesis());
+    }
+
+    /**
+     * Synthesizes a frame from the given row of magnitudes.
+     *
+     * @param row row
+     * @param synthesis how to synthesize
+     * @return frame
+     */
+    public AudioBuffer synthesize(final int row, final Synthesis synthesis) {
+        final float[] magBuffer = getMaskedMagnitudes(row);
         final AudioFormat songFormat = getSong().getAudioFormat();
         final AudioFormat audioFormat = new AudioFormat(
                 songFormat.getEncoding(),
@@ -142,9 +160,107 @@ public class Channel {
                 songFormat.getFrameRate(),
                 songFormat.isBigEndian()
         );
+        if (synthesis == Synthesis.ORIGINAL_PHASE) {
+            return new RealAudioBuffer(getSong().getEffectiveHopSizeInFrames() * row, synthesizeWithOriginalPhase(magBuffer, samples.getRow(row)), audioFormat);
+        }
         final Transform griffinLim = new GriffinLim(samples.getRow(row), new float[magBuffer.length * 2], 5); // 5 griffin lim iterations?
-        return new RealAudioBuffer(getSong().getHopSizeInFrames() * row, griffinLim.transform(magBuffer)[0], audioFormat);
-        //return new RealAudioBuffer(getSong().getHopSizeInFrames() * row, samples.getRow(row), audioFormat);
+        return new RealAudioBuffer(getSong().getEffectiveHopSizeInFrames() * row, griffinLim.transform(magBuffer)[0], audioFormat);
+        //return new RealAudioBuffer(getSong().getEffectiveHopSizeInFrames() * row, samples.getRow(row), audioFormat);
+    }
+
+    /**
+     * Multiplies a row of magnitudes with the corresponding row of the mask.
+     * The result is placed in a per-thread scratch buffer, which is only valid until the next call.
+     *
+     * @param row row
+     * @return masked magnitudes
+     */
+    float[] getMaskedMagnitudes(final int row) {
+        final int columns = magnitudes.getNumberOfColumns();
+        float[] masked = MASKED_MAGNITUDES.get();
+        if (masked.length != columns) {
+            masked = new float[columns];
+            MASKED_MAGNITUDES.set(masked);
+        }
+        if (magnitudes instanceof DenseMatrix) {
+            ((DenseMatrix) magnitudes).copyRow(row, masked, 0);
+        } else {
+            for (int column = 0; column < columns; column++) {
+                masked[column] = magnitudes.get(row, column);
+            }
+        }
+        if (mask == null) return masked;
+        if (mask instanceof QuantizedMask) {
+            // the inverse is already part of the lookup table
+            final float[] maskRow = getMaskRow(columns);
+            ((QuantizedMask) mask).copyRow(row, maskRow, 0);
+            for (int column = 0; column < columns; column++) {
+                masked[column] *= maskRow[column];
+            }
+        } else if (mask instanceof RowMajorMatrix) {
+            final float[] maskData = ((RowMajorMatrix) mask).getData();
+            final int offset = ((RowMajorMatrix) mask).getOffset(row);
+            for (int column = 0; column < columns; column++) {
+                masked[column] *= maskValue(maskData[offset + column]);
+            }
+        } else if (mask instanceof DenseMatrix) {
+            final float[] maskRow = getMaskRow(columns);
+            ((DenseMatrix) mask).copyRow(row, maskRow, 0);
+            for (int column = 0; column < columns; column++) {
+                masked[column] *= maskValue(maskRow[column]);
+            }
+        } else {
+            for (int column = 0; column < columns; column++) {
+                masked[column] *= maskValue(mask.get(row, column));
+            }
+        }
+        return masked;
+    }
+
+    private static float[] getMaskRow(final int columns) {
+        float[] maskRow = MASK_ROW.get();
+        if (maskRow.length != columns) {
+            maskRow = new float[columns];
+            MASK_ROW.set(maskRow);
+        }
+        return maskRow;
+    }
+
+    private float maskValue(final float value) {
+        return inverseMask ? (float) Math.abs(value - 1.0) : value;
+    }
+
+    /**
+     * Scales each bin of the original frame's spectrum by {@code magnitude / originalMagnitude}
+     * and transforms it back. As the magnitudes only cover the first {@code n/2} bins,
+     * the Nyquist bin is scaled like the last one.
+     *
+     * @param magnitudes new magnitudes, {@code n/2} values
+     * @param frame original frame, {@code n} values, is transformed in place
+     * @return synthesized frame
+     */
+    private static float[] synthesizeWithOriginalPhase(final float[] magnitudes, final float[] frame) {
+        final int length = frame.length;
+        final int half = length / 2;
+        final float[] imaginary = new float[length];
+        final FFTPlan plan = FFTPlan.getInstance(length);
+        plan.forward(frame, imaginary);
+        float gain = 0;
+        for (int k = 0; k <= half; k++) {
+            if (k < magnitudes.length) {
+                final float originalMagnitude = (float) Math.sqrt(frame[k] * frame[k] + imaginary[k] * imaginary[k]);
+                gain = originalMagnitude == 0 ? 0 : magnitudes[k] / originalMagnitude;
+            }
+            frame[k] *= gain;
+            imaginary[k] *= gain;
+            // keep the spectrum conjugate symmetric, so that the result is real
+            if (k > 0 && k < half) {
+                frame[length - k] *= gain;
+                imaginary[length - k] *= gain;
+            }
+        }
+        plan.inverse(frame, imaginary);
+        return frame;
     }
 
     /**
@@ -154,10 +270,17 @@ public class Channel {
      * @return two channels - one is the inverse of the other
      */
     public Channel[] separate(final Matrix mask) {
-        final Matrix inverseMask = apply(mask, (d) -> Math.abs(d - 1.0));
+        // masks are applied during synthesis, row by row, so that no masked matrices are created
+        final Matrix unmasked = this.mask == null ? magnitudes : getMagnitudes();
+        if (mask instanceof QuantizedMask) {
+            return new Channel[]{
+                    new Channel(song, unmasked, mask, false, samples),
+                    new Channel(song, unmasked, ((QuantizedMask) mask).inverse(), false, samples)
+            };
+        }
         return new Channel[]{
-                new Channel(song, magnitudes.hadamardMultiply(mask), samples),
-                new Channel(song, magnitudes.hadamardMultiply(inverseMask), samples)
+                new Channel(song, unmasked, mask, false, samples),
+                new Channel(song, unmasked, mask, true, samples)
         };
     }
 
@@ -0,0 +1,47 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import com.tagtraum.jipes.math.Matrix;
+
+/**
+ * Matrix that actually stores all its values (as opposed to a view) and
+ * allows copying whole rows in and out without per-element calls.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ * @see Storage
+ */
+public interface DenseMatrix extends Matrix {
+
+    /**
+     * Sets a single value.
+     *
+     * @param row row
+     * @param column column
+     * @param value value
+     */
+    void set(int row, int column, float value);
+
+    /**
+     * Copies a row into the given array.
+     *
+     * @param row row
+     * @param dest destination
+     * @param offset offset into the destination
+     */
+    void copyRow(int row, float[] dest, int offset);
+
+    /**
+     * Sets a row.
+     *
+     * @param row row
+     * @param values source array
+     * @param offset offset into the source array
+     */
+    void setRow(int row, float[] values, int offset);
+
+}
@@ -0,0 +1,116 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Precomputed, immutable plan for an in-place, radix-2 complex FFT of a fixed size.
+ * Plans are cached per size and are safe to share between threads, as they don't hold
+ * any mutable state. Transforms don't allocate any memory.
+ * <p>
+ * The forward transform is not scaled, the inverse transform is scaled by {@code 1/n}.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class FFTPlan {
+
+    private static final ConcurrentMap<Integer, FFTPlan> PLANS = new ConcurrentHashMap<>();
+
+    private final int size;
+    private final int[] bitReversal;
+    private final float[] cos;
+    private final float[] sin;
+
+    private FFTPlan(final int size) {
+        if (Integer.bitCount(size) != 1) throw new IllegalArgumentException("Size must be a power of 2: " + size);
+        this.size = size;
+        this.bitReversal = new int[size];
+        final int bits = Integer.numberOfTrailingZeros(size);
+        for (int i = 0; i < size; i++) {
+            bitReversal[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+        this.cos = new float[size / 2];
+        this.sin = new float[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            final double phi = 2.0 * Math.PI * i / size;
+            cos[i] = (float) Math.cos(phi);
+            sin[i] = (float) Math.sin(phi);
+        }
+    }
+
+    /**
+     * @param size transform size, must be a power of 2
+     * @return (cached) plan
+     */
+    static FFTPlan getInstance(final int size) {
+        return PLANS.computeIfAbsent(size, FFTPlan::new);
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * In-place forward transform.
+     *
+     * @param real real parts
+     * @param imaginary imaginary parts
+     */
+    void forward(final float[] real, final float[] imaginary) {
+        reorder(real, imaginary);
+        for (int length = 2; length <= size; length <<= 1) {
+            final int half = length >> 1;
+            final int step = size / length;
+            for (int start = 0; start < size; start += length) {
+                for (int j = 0, k = 0; j < half; j++, k += step) {
+                    final int a = start + j;
+                    final int b = a + half;
+                    // multiply by twiddle factor e^(-2 pi i k / size)
+                    final float tr = real[b] * cos[k] + imaginary[b] * sin[k];
+                    final float ti = imaginary[b] * cos[k] - real[b] * sin[k];
+                    real[b] = real[a] - tr;
+                    imaginary[b] = imaginary[a] - ti;
+                    real[a] += tr;
+                    imaginary[a] += ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * In-place inverse transform, scaled by {@code 1/n}.
+     *
+     * @param real real parts
+     * @param imaginary imaginary parts
+     */
+    void inverse(final float[] real, final float[] imaginary) {
+        // ifft(x) = conj(fft(conj(x))) / n
+        for (int i = 0; i < size; i++) imaginary[i] = -imaginary[i];
+        forward(real, imaginary);
+        final float scale = 1f / size;
+        for (int i = 0; i < size; i++) {
+            real[i] *= scale;
+            imaginary[i] *= -scale;
+        }
+    }
+
+    private void reorder(final float[] real, final float[] imaginary) {
+        for (int i = 0; i < size; i++) {
+            final int j = bitReversal[i];
+            if (j > i) {
+                final float r = real[i];
+                real[i] = real[j];
+                real[j] = r;
+                final float im = imaginary[i];
+                imaginary[i] = imaginary[j];
+                imaginary[j] = im;
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import java.util.Arrays;
+
+/**
+ * Minimal growable list of primitive {@code float}s.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class FloatArrayList {
+
+    private float[] values;
+    private int size;
+
+    /**
+     * @param initialCapacity initial capacity, avoids copying, if the final size is known in advance
+     */
+    FloatArrayList(final int initialCapacity) {
+        this.values = new float[Math.max(16, initialCapacity)];
+    }
+
+    void add(final float[] source, final int offset, final int length) {
+        ensureCapacity(size + length);
+        System.arraycopy(source, offset, values, size, length);
+        size += length;
+    }
+
+    /**
+     * Reserves space for {@code length} more values and returns the offset, at which they
+     * may be written to {@link #getValues()}.
+     *
+     * @param length number of values to append
+     * @return offset of the first appended value
+     */
+    int append(final int length) {
+        ensureCapacity(size + length);
+        final int offset = size;
+        size += length;
+        return offset;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity < 0) throw new OutOfMemoryError("Too many values: " + capacity);
+        if (capacity > values.length) {
+            // grow by 50% to limit over-allocation
+            final long newCapacity = Math.max(capacity, values.length + (long)(values.length >> 1));
+            values = Arrays.copyOf(values, (int)Math.min(Integer.MAX_VALUE - 8, newCapacity));
+        }
+    }
+
+    /**
+     * Backing array. Only the first {@link #size()} values are valid.
+     * May change with every call to {@code add} or {@code append}.
+     *
+     * @return backing array
+     */
+    float[] getValues() {
+        return values;
+    }
+
+    int size() {
+        return size;
+    }
+}
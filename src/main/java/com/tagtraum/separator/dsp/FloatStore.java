@@ -0,0 +1,65 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+/**
+ * Storage for {@code float} values, addressed by {@code long} indices.
+ * Concurrent access to disjoint indices is safe.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ * @see StoredMatrix
+ */
+public interface FloatStore {
+
+    /**
+     * @return number of values
+     */
+    long size();
+
+    /**
+     * Grows this store, so that it can hold at least the given number of values.
+     * Must not be called concurrently with other methods.
+     *
+     * @param capacity min number of values
+     */
+    void ensureCapacity(long capacity);
+
+    float get(long index);
+
+    void set(long index, float value);
+
+    /**
+     * Copies {@code length} values starting at {@code index} into {@code dest}.
+     *
+     * @param index index of the first value
+     * @param dest destination
+     * @param offset offset into the destination
+     * @param length number of values
+     */
+    void get(long index, float[] dest, int offset, int length);
+
+    /**
+     * Copies {@code length} values from {@code values} to this store, starting at {@code index}.
+     *
+     * @param index index of the first value
+     * @param values source
+     * @param offset offset into the source
+     * @param length number of values
+     */
+    void set(long index, float[] values, int offset, int length);
+
+    /**
+     * Array that backs this store, for callers that want to access values on the heap directly.
+     * The array may be replaced by {@link #ensureCapacity(long)}.
+     *
+     * @return backing array, indexed like this store, or {@code null}, if values are not kept in a single array
+     */
+    default float[] getArray() {
+        return null;
+    }
+
+}
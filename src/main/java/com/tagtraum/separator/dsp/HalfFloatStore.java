@@ -0,0 +1,176 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import java.util.Arrays;
+
+/**
+ * {@link FloatStore} that keeps its values on the heap as IEEE 754 half-precision floats (float16),
+ * i.e. in half the memory of {@code float}s, with about three significant decimal digits.
+ * <p>
+ * Unscaled FFT magnitudes of 16 bit audio easily exceed the float16 max of {@code 65504}.
+ * Values are therefore stored multiplied by {@code 2^-12}. Representable values range
+ * from about {@code 2.4e-4} to {@code 2.7e8}, full precision starts at {@code 0.25}.
+ * Values are rounded to the nearest representable value, ties to even. Reading uses a lookup table.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class HalfFloatStore implements FloatStore {
+
+    private static final int CHUNK_SHIFT = 24;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final float SCALE = 1f / 4096f;
+    private static final float[] DECODE = new float[1 << 16];
+
+    static {
+        for (int half = 0; half < DECODE.length; half++) {
+            DECODE[half] = toFloat((short) half) / SCALE;
+        }
+    }
+
+    private short[][] chunks = new short[0][];
+    private long size;
+
+    /**
+     * @param size number of values
+     */
+    public HalfFloatStore(final long size) {
+        ensureCapacity(size);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Grows by at least half of the current size, so that growing in many small steps
+     * (e.g. while streaming) takes amortized constant time per value.
+     */
+    @Override
+    public void ensureCapacity(final long capacity) {
+        if (capacity <= size) return;
+        final long newSize = Math.max(capacity, size + (size >> 1));
+        final int chunkCount = (int) ((newSize + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+        final short[][] newChunks = Arrays.copyOf(chunks, chunkCount);
+        // all chunks but the last are full, the last one is just large enough
+        for (int i = Math.max(0, chunks.length - 1); i < chunkCount; i++) {
+            final int length = (int) Math.min(CHUNK_SIZE, newSize - ((long) i << CHUNK_SHIFT));
+            newChunks[i] = i < chunks.length ? Arrays.copyOf(chunks[i], length) : new short[length];
+        }
+        chunks = newChunks;
+        size = newSize;
+    }
+
+    @Override
+    public float get(final long index) {
+        return DECODE[chunks[(int) (index >>> CHUNK_SHIFT)][(int) (index & CHUNK_MASK)] & 0xFFFF];
+    }
+
+    @Override
+    public void set(final long index, final float value) {
+        chunks[(int) (index >>> CHUNK_SHIFT)][(int) (index & CHUNK_MASK)] = toHalf(value * SCALE);
+    }
+
+    @Override
+    public void get(final long index, final float[] dest, final int offset, final int length) {
+        long i = index;
+        int o = offset;
+        int remaining = length;
+        while (remaining > 0) {
+            final short[] chunk = chunks[(int) (i >>> CHUNK_SHIFT)];
+            final int position = (int) (i & CHUNK_MASK);
+            final int count = Math.min(remaining, CHUNK_SIZE - position);
+            for (int k = 0; k < count; k++) {
+                dest[o + k] = DECODE[chunk[position + k] & 0xFFFF];
+            }
+            i += count;
+            o += count;
+            remaining -= count;
+        }
+    }
+
+    @Override
+    public void set(final long index, final float[] values, final int offset, final int length) {
+        long i = index;
+        int o = offset;
+        int remaining = length;
+        while (remaining > 0) {
+            final short[] chunk = chunks[(int) (i >>> CHUNK_SHIFT)];
+            final int position = (int) (i & CHUNK_MASK);
+            final int count = Math.min(remaining, CHUNK_SIZE - position);
+            for (int k = 0; k < count; k++) {
+                chunk[position + k] = toHalf(values[o + k] * SCALE);
+            }
+            i += count;
+            o += count;
+            remaining -= count;
+        }
+    }
+
+    /**
+     * Converts a {@code float} to the nearest half-precision float, ties to even.
+     *
+     * @param f float
+     * @return half-precision bits
+     */
+    static short toHalf(final float f) {
+        final int bits = Float.floatToRawIntBits(f);
+        final int sign = (bits >>> 16) & 0x8000;
+        final int value = bits & 0x7FFFFFFF;
+        if (value > 0x7F800000) return (short) (sign | 0x7E00); // NaN
+        final int exponent = (value >>> 23) - 127 + 15;
+        if (exponent >= 31) return (short) (sign | 0x7C00); // infinity
+        if (exponent <= 0) {
+            // subnormal or zero
+            if (exponent < -10) return (short) sign;
+            final int mantissa = (value & 0x7FFFFF) | 0x800000;
+            final int shift = 14 - exponent;
+            int half = mantissa >>> shift;
+            final int remainder = mantissa & ((1 << shift) - 1);
+            final int halfway = 1 << (shift - 1);
+            if (remainder > halfway || (remainder == halfway && (half & 1) != 0)) half++;
+            return (short) (sign | half);
+        }
+        int half = (exponent << 10) | ((value >>> 13) & 0x3FF);
+        final int remainder = value & 0x1FFF;
+        // a carry into the exponent is correct, even if it results in infinity
+        if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) half++;
+        return (short) (sign | half);
+    }
+
+    /**
+     * Converts half-precision bits to a {@code float}.
+     *
+     * @param half half-precision bits
+     * @return float
+     */
+    static float toFloat(final short half) {
+        final int bits = half & 0xFFFF;
+        final int sign = (bits & 0x8000) << 16;
+        final int exponent = (bits >>> 10) & 0x1F;
+        final int mantissa = bits & 0x3FF;
+        if (exponent == 0) {
+            final float value = mantissa * 0x1p-24f;
+            return sign == 0 ? value : -value;
+        }
+        if (exponent == 31) {
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+
+    @Override
+    public String toString() {
+        return "HalfFloatStore{" +
+                "size=" + size +
+                '}';
+    }
+}
@@ -8,7 +8,6 @@ package com.tagtraum.separator.dsp;
 
 import com.tagtraum.jipes.math.*;
 
-import java.util.Arrays;
 import java.util.function.DoubleBinaryOperator;
 import java.util.function.Function;
 import java.util.logging.Logger;
@@ -33,6 +32,8 @@ public class HarmonicPercussiveSeparation implements Function<Channel, Matrix> {
     */
 
     private static final Logger LOG = Logger.getLogger(HarmonicPercussiveSeparation.class.getName());
+    /** Number of columns filtered together by {@link #columnMedians(Matrix, int, Storage)}, one cache line of floats. */
+    private static final int COLUMN_BLOCK_SIZE = 16;
 
     private int k = 10;
     private DoubleBinaryOperator magnitudesToMask = (a, b) -> 1f / (1f + (float) Math.exp(-k * (b/(a+b)-0.5f))); // Logistic function
@@ -75,8 +76,8 @@ public class HarmonicPercussiveSeparation implements Function<Channel, Matrix> {
     public Matrix apply(final Channel channel) {
         final Song song = channel.getSong();
         final float sampleRate = song.getAudioFormat().getSampleRate();
-        final int hopSizeInFrames = song.getHopSizeInFrames();
-        final int sliceLengthInFrames = song.getSliceLengthInFrames();
+        final int hopSizeInFrames = song.getEffectiveHopSizeInFrames();
+        final int sliceLengthInFrames = song.getEffectiveSliceLengthInFrames();
 
         final float hopSizeInMilliseconds = hopSizeInFrames / sampleRate * 1000;
         final float harmonicRegionLength = harmonicWindow/hopSizeInMilliseconds;
@@ -85,8 +86,9 @@ public class HarmonicPercussiveSeparation implements Function<Channel, Matrix> {
         final int harmonicL = toMedianL(harmonicRegionLength);
         LOG.info("Percussive l=" + percussiveL + ", harmonic l=" + harmonicL);
 
-        final Matrix percussiveMedians = rowMedians(channel.getMagnitudes(), percussiveL);
-        final Matrix harmonicMedians = columnMedians(channel.getMagnitudes(), harmonicL);
+        // the medians live as long as the mask, so keep them wherever the song keeps its matrices
+        final Matrix percussiveMedians = rowMedians(channel.getMagnitudes(), percussiveL, song.getStorage());
+        final Matrix harmonicMedians = columnMedians(channel.getMagnitudes(), harmonicL, song.getStorage());
 
         return Channel.apply(harmonicMedians, percussiveMedians, magnitudesToMask);
     }
@@ -100,24 +102,38 @@ public class HarmonicPercussiveSeparation implements Function<Channel, Matrix> {
      *
      * @param m source matrix
      * @param length median region is {@code length*2+1}
+     * @param storage storage for the result
      * @return matrix with medians
+     * @see RunningMedian
      */
-    private static Matrix rowMedians(final Matrix m, final int length) {
-        final MutableMatrix medians = new FullMatrix(m.getNumberOfRows(), m.getNumberOfColumns(), new FloatBackingBuffer(true), false);
-        final float[] paddedValues = new float[m.getNumberOfColumns()+ 2*length];
+    private static Matrix rowMedians(final Matrix m, final int length, final Storage storage) {
+        final int columns = m.getNumberOfColumns();
+        final int rows = m.getNumberOfRows();
+        final DenseMatrix medians = storage.createMatrix(rows, columns);
+        final int blockSize = Song.getBlockSize(rows);
 
-        IntStream.range(0, m.getNumberOfRows())
+        IntStream.range(0, (rows + blockSize - 1) / blockSize)
                 .parallel()
                 .forEach(
-                        (row) -> {
-                            final float[] values = m.getRow(row);
-                            // values
-                            System.arraycopy(values, 0, paddedValues, length, values.length);
-                            // padding
-                            Arrays.fill(paddedValues, 0, length, values[0]);
-                            Arrays.fill(paddedValues, values.length+length, paddedValues.length, values[values.length-1]);
-                            for (int column=0; column<m.getNumberOfColumns(); column++) {
-                                medians.set(row, column, Floats.median(paddedValues, column, length * 2 + 1));
+                        (block) -> {
+                            // scratch is allocated per block, so that nothing outlives this call
+                            final RunningMedian runningMedian = new RunningMedian(length);
+                            final float[] buffer = medians instanceof RowMajorMatrix ? null : new float[columns];
+                            final int end = Math.min(rows, (block + 1) * blockSize);
+                            for (int row = block * blockSize; row < end; row++) {
+                                final float[] dest = medians instanceof RowMajorMatrix ? ((RowMajorMatrix) medians).getData() : buffer;
+                                final int destOffset = medians instanceof RowMajorMatrix ? ((RowMajorMatrix) medians).getOffset(row) : 0;
+                                if (m instanceof RowMajorMatrix) {
+                                    final RowMajorMatrix source = (RowMajorMatrix) m;
+                                    runningMedian.filter(source.getData(), source.getOffset(row), 1, columns,
+                                            dest, destOffset, 1);
+                                } else {
+                                    runningMedian.filter(m.getRow(row), 0, 1, columns,
+                                            dest, destOffset, 1);
+                                }
+                                if (!(medians instanceof RowMajorMatrix)) {
+                                    medians.setRow(row, dest, 0);
+                                }
                             }
                         });
         return medians;
@@ -125,13 +141,69 @@ public class HarmonicPercussiveSeparation implements Function<Channel, Matrix> {
 
     /**
      * Creates a new matrix which contains column-wise medians from the source matrix.
+     * <p>
+     * Columns are processed in blocks of {@link #COLUMN_BLOCK_SIZE}. Each block is gathered from the
+     * row-major source into a contiguous per-block buffer, filtered, and scattered back into
+     * the row-major result. This way, neither input nor output is accessed through a transposed view.
      *
      * @param m source matrix
      * @param length median region is {@code length*2+1}
+     * @param storage storage for the result
      * @return matrix with medians
+     * @see RunningMedian
      */
-    private static Matrix columnMedians(final Matrix m, final int length) {
-        return rowMedians(m.transpose(), length).transpose();
+    private static Matrix columnMedians(final Matrix m, final int length, final Storage storage) {
+        final int rows = m.getNumberOfRows();
+        final int columns = m.getNumberOfColumns();
+        final DenseMatrix medians = storage.createMatrix(rows, columns);
+
+        IntStream.range(0, (columns + COLUMN_BLOCK_SIZE - 1) / COLUMN_BLOCK_SIZE)
+                .parallel()
+                .forEach(
+                        (block) -> {
+                            final int firstColumn = block * COLUMN_BLOCK_SIZE;
+                            final int width = Math.min(COLUMN_BLOCK_SIZE, columns - firstColumn);
+                            // scratch is allocated per block, so that nothing outlives this call
+                            final RunningMedian runningMedian = new RunningMedian(length);
+                            final float[] in = new float[rows * width];
+                            final float[] out = new float[rows * width];
+                            // gather, so that each column is contiguous
+                            if (m instanceof RowMajorMatrix) {
+                                final float[] source = ((RowMajorMatrix) m).getData();
+                                for (int row = 0; row < rows; row++) {
+                                    final int offset = ((RowMajorMatrix) m).getOffset(row) + firstColumn;
+                                    for (int c = 0; c < width; c++) {
+                                        in[c * rows + row] = source[offset + c];
+                                    }
+                                }
+                            } else {
+                                for (int row = 0; row < rows; row++) {
+                                    for (int c = 0; c < width; c++) {
+                                        in[c * rows + row] = m.get(row, firstColumn + c);
+                                    }
+                                }
+                            }
+                            for (int c = 0; c < width; c++) {
+                                runningMedian.filter(in, c * rows, 1, rows, out, c * rows, 1);
+                            }
+                            // scatter
+                            if (medians instanceof RowMajorMatrix) {
+                                final float[] dest = ((RowMajorMatrix) medians).getData();
+                                for (int row = 0; row < rows; row++) {
+                                    final int offset = ((RowMajorMatrix) medians).getOffset(row) + firstColumn;
+                                    for (int c = 0; c < width; c++) {
+                                        dest[offset + c] = out[c * rows + row];
+                                    }
+                                }
+                            } else {
+                                for (int row = 0; row < rows; row++) {
+                                    for (int c = 0; c < width; c++) {
+                                        medians.set(row, firstColumn + c, out[c * rows + row]);
+                                    }
+                                }
+                            }
+                        });
+        return medians;
     }
 
 }
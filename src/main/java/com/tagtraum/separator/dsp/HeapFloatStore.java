@@ -0,0 +1,90 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import java.util.Arrays;
+
+/**
+ * {@link FloatStore} that keeps its values in a single {@code float[]} on the heap.
+ * Fastest, but limited to about {@code 2^31} values. The backing array is available via
+ * {@link #getArray()}, so that matrices and bands can access it directly.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class HeapFloatStore implements FloatStore {
+
+    private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+    private float[] values;
+
+    /**
+     * @param size number of values
+     * @throws IllegalArgumentException if the size exceeds the max size of a Java array
+     */
+    public HeapFloatStore(final long size) {
+        checkSize(size);
+        this.values = new float[(int) size];
+    }
+
+    @Override
+    public long size() {
+        return values.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Grows by at least half of the current size, so that growing in many small steps
+     * (e.g. while streaming) takes amortized constant time per value.
+     * This replaces the backing array.
+     *
+     * @throws IllegalArgumentException if the capacity exceeds the max size of a Java array
+     */
+    @Override
+    public void ensureCapacity(final long capacity) {
+        if (capacity <= values.length) return;
+        checkSize(capacity);
+        final long newSize = Math.min(MAX_SIZE, Math.max(capacity, values.length + (values.length >> 1)));
+        values = Arrays.copyOf(values, (int) newSize);
+    }
+
+    private static void checkSize(final long size) {
+        if (size > MAX_SIZE) throw new IllegalArgumentException("Too many values for heap storage, use " + Storage.MAPPED + ": " + size);
+    }
+
+    @Override
+    public float[] getArray() {
+        return values;
+    }
+
+    @Override
+    public float get(final long index) {
+        return values[(int) index];
+    }
+
+    @Override
+    public void set(final long index, final float value) {
+        values[(int) index] = value;
+    }
+
+    @Override
+    public void get(final long index, final float[] dest, final int offset, final int length) {
+        System.arraycopy(values, (int) index, dest, offset, length);
+    }
+
+    @Override
+    public void set(final long index, final float[] values, final int offset, final int length) {
+        System.arraycopy(values, offset, this.values, (int) index, length);
+    }
+
+    @Override
+    public String toString() {
+        return "HeapFloatStore{" +
+                "size=" + values.length +
+                '}';
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Computes the magnitude spectrum of a real window of fixed length {@code n}, i.e.
+ * the absolute values of the first {@code n/2} bins of its unscaled DFT.
+ * <p>
+ * The real input is packed into a complex FFT of half the size, which is then split
+ * into the spectrum of the real signal. Scratch buffers are allocated once per thread,
+ * so computing a spectrum does not produce any garbage. Kernels are cached per size and
+ * may be shared between threads.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class MagnitudeKernel {
+
+    private static final ConcurrentMap<Integer, MagnitudeKernel> KERNELS = new ConcurrentHashMap<>();
+
+    private final int length;
+    private final int half;
+    private final FFTPlan plan;
+    private final float[] cos;
+    private final float[] sin;
+    private final ThreadLocal<float[][]> scratch;
+
+    private MagnitudeKernel(final int length) {
+        if (Integer.bitCount(length) != 1 || length < 2) throw new IllegalArgumentException("Length must be a power of 2: " + length);
+        this.length = length;
+        this.half = length / 2;
+        this.plan = FFTPlan.getInstance(half);
+        this.cos = new float[half];
+        this.sin = new float[half];
+        for (int k = 0; k < half; k++) {
+            final double phi = 2.0 * Math.PI * k / length;
+            cos[k] = (float) Math.cos(phi);
+            sin[k] = (float) Math.sin(phi);
+        }
+        this.scratch = ThreadLocal.withInitial(() -> new float[][]{new float[half], new float[half]});
+    }
+
+    /**
+     * @param length window length, must be a power of 2
+     * @return (cached) kernel
+     */
+    static MagnitudeKernel getInstance(final int length) {
+        return KERNELS.computeIfAbsent(length, MagnitudeKernel::new);
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * Computes the magnitudes of a window and writes them to {@code dest}.
+     * If fewer than {@link #getLength()} samples are available, the window is zero-padded.
+     *
+     * @param source source samples
+     * @param offset offset of the first window sample in {@code source}
+     * @param available number of samples available in {@code source}, starting at {@code offset}
+     * @param dest destination for {@code n/2} magnitudes
+     * @param destOffset offset into {@code dest}
+     */
+    void magnitudes(final float[] source, final int offset, final int available, final float[] dest, final int destOffset) {
+        final float[][] buffers = scratch.get();
+        final float[] real = buffers[0];
+        final float[] imaginary = buffers[1];
+        // pack even samples into the real, odd samples into the imaginary part
+        final int count = Math.max(0, Math.min(available, length));
+        final int pairs = count / 2;
+        for (int i = 0; i < pairs; i++) {
+            real[i] = source[offset + 2 * i];
+            imaginary[i] = source[offset + 2 * i + 1];
+        }
+        if (pairs < half) {
+            Arrays.fill(real, pairs, half, 0f);
+            Arrays.fill(imaginary, pairs, half, 0f);
+            if ((count & 1) == 1) real[pairs] = source[offset + count - 1];
+        }
+        plan.forward(real, imaginary);
+
+        // X[k] = E[k] + e^(-2 pi i k / n) * O[k] with E/O being the spectra of the even/odd samples
+        for (int k = 0; k < half; k++) {
+            final int m = k == 0 ? 0 : half - k;
+            final float er = (real[k] + real[m]) * 0.5f;
+            final float ei = (imaginary[k] - imaginary[m]) * 0.5f;
+            final float or = (imaginary[k] + imaginary[m]) * 0.5f;
+            final float oi = (real[m] - real[k]) * 0.5f;
+            final float xr = er + cos[k] * or + sin[k] * oi;
+            final float xi = ei + cos[k] * oi - sin[k] * or;
+            dest[destOffset + k] = (float) Math.sqrt(xr * xr + xi * xi);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * {@link FloatStore} that keeps its values in memory-mapped temporary files instead of on the heap.
+ * The operating system pages regions in and out as needed, so stores may be much larger than
+ * the heap, and larger than {@code 2^31} values.
+ * <p>
+ * Values are split into chunks of {@code 2^24} floats, each backed by its own file, which is
+ * deleted right after it has been mapped. Its space is released, once the store is garbage collected.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class MappedFloatStore implements FloatStore {
+
+    private static final int CHUNK_SHIFT = 24;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final File directory;
+    private FloatBuffer[] chunks = new FloatBuffer[0];
+    private long size;
+
+    /**
+     * Creates a store in the default temporary directory.
+     *
+     * @param size number of values
+     * @throws UncheckedIOException if the backing files cannot be created
+     */
+    public MappedFloatStore(final long size) {
+        this(size, null);
+    }
+
+    /**
+     * @param size number of values
+     * @param directory directory for the backing files or {@code null} for the default temporary directory
+     * @throws UncheckedIOException if the backing files cannot be created
+     */
+    public MappedFloatStore(final long size, final File directory) {
+        this.directory = directory;
+        ensureCapacity(size);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UncheckedIOException if the backing files cannot be created
+     */
+    @Override
+    public void ensureCapacity(final long capacity) {
+        if (capacity <= size) return;
+        final int chunkCount = (int) ((capacity + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+        final FloatBuffer[] newChunks = Arrays.copyOf(chunks, chunkCount);
+        for (int i = chunks.length; i < chunkCount; i++) {
+            newChunks[i] = map();
+        }
+        chunks = newChunks;
+        size = (long) chunkCount << CHUNK_SHIFT;
+    }
+
+    private FloatBuffer map() {
+        try {
+            final Path file = directory == null
+                    ? Files.createTempFile("floats", ".map")
+                    : Files.createTempFile(directory.toPath(), "floats", ".map");
+            try (final FileChannel channel = FileChannel.open(file, READ, WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, 4L * CHUNK_SIZE)
+                        .order(ByteOrder.nativeOrder())
+                        .asFloatBuffer();
+            } finally {
+                // the mapping stays valid, but on some platforms mapped files cannot be deleted
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    file.toFile().deleteOnExit();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to map temporary file", e);
+        }
+    }
+
+    @Override
+    public float get(final long index) {
+        return chunks[(int) (index >>> CHUNK_SHIFT)].get((int) (index & CHUNK_MASK));
+    }
+
+    @Override
+    public void set(final long index, final float value) {
+        chunks[(int) (index >>> CHUNK_SHIFT)].put((int) (index & CHUNK_MASK), value);
+    }
+
+    @Override
+    public void get(final long index, final float[] dest, final int offset, final int length) {
+        long i = index;
+        int o = offset;
+        int remaining = length;
+        while (remaining > 0) {
+            final int position = (int) (i & CHUNK_MASK);
+            final int count = Math.min(remaining, CHUNK_SIZE - position);
+            // duplicate, as relative bulk operations are not thread-safe
+            final FloatBuffer chunk = chunks[(int) (i >>> CHUNK_SHIFT)].duplicate();
+            chunk.position(position);
+            chunk.get(dest, o, count);
+            i += count;
+            o += count;
+            remaining -= count;
+        }
+    }
+
+    @Override
+    public void set(final long index, final float[] values, final int offset, final int length) {
+        long i = index;
+        int o = offset;
+        int remaining = length;
+        while (remaining > 0) {
+            final int position = (int) (i & CHUNK_MASK);
+            final int count = Math.min(remaining, CHUNK_SIZE - position);
+            final FloatBuffer chunk = chunks[(int) (i >>> CHUNK_SHIFT)].duplicate();
+            chunk.position(position);
+            chunk.put(values, o, count);
+            i += count;
+            o += count;
+            remaining -= count;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MappedFloatStore{" +
+                "size=" + size +
+                ", chunks=" + chunks.length +
+                '}';
+    }
+}
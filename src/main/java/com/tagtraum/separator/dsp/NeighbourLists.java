@@ -0,0 +1,101 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+/**
+ * Sparse, per-row lists of the most similar other rows (neighbours) of a self-similarity matrix.
+ * Each row has at most {@link #getMaxNeighbours()} neighbours, ordered by descending similarity.
+ * Neighbours with equal similarity are ordered by descending row index.
+ * <p>
+ * All data is kept in flat primitive arrays, list {@code row} occupying the indices
+ * {@code [row * maxNeighbours, row * maxNeighbours + getCount(row))}.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ * @see SelfSimilarityFunction#neighbours(Channel, int, int)
+ */
+public class NeighbourLists {
+
+    private final int rows;
+    private final int maxNeighbours;
+    private final int[] counts;
+    private final int[] neighbours;
+    private final float[] similarities;
+
+    public NeighbourLists(final int rows, final int maxNeighbours) {
+        this.rows = rows;
+        this.maxNeighbours = maxNeighbours;
+        this.counts = new int[rows];
+        this.neighbours = new int[rows * maxNeighbours];
+        this.similarities = new float[rows * maxNeighbours];
+    }
+
+    public int getNumberOfRows() {
+        return rows;
+    }
+
+    public int getMaxNeighbours() {
+        return maxNeighbours;
+    }
+
+    /**
+     * @param row row
+     * @return number of neighbours of the given row
+     */
+    public int getCount(final int row) {
+        return counts[row];
+    }
+
+    /**
+     * @param row row
+     * @param i index into the row's list, {@code 0} being the most similar
+     * @return neighbouring row
+     */
+    public int getNeighbour(final int row, final int i) {
+        return neighbours[row * maxNeighbours + i];
+    }
+
+    /**
+     * @param row row
+     * @param i index into the row's list, {@code 0} being the most similar
+     * @return similarity of the neighbouring row
+     */
+    public float getSimilarity(final int row, final int i) {
+        return similarities[row * maxNeighbours + i];
+    }
+
+    /**
+     * Offers a candidate. It is kept, if it is among the {@link #getMaxNeighbours()} most similar
+     * rows offered so far. Candidates for one row must be offered in ascending row order,
+     * so that of two equally similar rows the later one ranks higher.
+     *
+     * @param row row
+     * @param neighbour candidate row
+     * @param similarity similarity between row and candidate
+     */
+    void offer(final int row, final int neighbour, final float similarity) {
+        final int offset = row * maxNeighbours;
+        final int count = counts[row];
+        // find the first entry the candidate ranks higher than
+        int position = 0;
+        while (position < count && similarities[offset + position] > similarity) position++;
+        if (position >= maxNeighbours) return;
+        final int last = Math.min(count, maxNeighbours - 1);
+        System.arraycopy(neighbours, offset + position, neighbours, offset + position + 1, last - position);
+        System.arraycopy(similarities, offset + position, similarities, offset + position + 1, last - position);
+        neighbours[offset + position] = neighbour;
+        similarities[offset + position] = similarity;
+        if (count < maxNeighbours) counts[row] = count + 1;
+    }
+
+    @Override
+    public String toString() {
+        return "NeighbourLists{" +
+                "rows=" + rows +
+                ", maxNeighbours=" + maxNeighbours +
+                '}';
+    }
+}
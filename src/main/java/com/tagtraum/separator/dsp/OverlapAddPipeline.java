@@ -0,0 +1,213 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import com.tagtraum.jipes.AbstractSignalProcessor;
+import com.tagtraum.jipes.SignalProcessor;
+import com.tagtraum.jipes.audio.AudioBuffer;
+import com.tagtraum.jipes.audio.OLA;
+import com.tagtraum.jipes.audio.RealAudioBuffer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Overlap-adds the frames of each channel on a thread of its own and joins the channels on another thread.
+ * <p>
+ * Frames are handed to each channel's {@link OLA} processor through a bounded queue.
+ * The OLA output of each channel goes into a second bounded queue (a per-channel ring buffer),
+ * separated by row markers. The join thread reads these queues one row and one channel at a time,
+ * so the join sees exactly the same sequence of buffers and flushes as if all OLA processors
+ * were called one after another on a single thread.
+ * <p>
+ * If any of the threads fails, the next call to {@link #process(int, AudioBuffer)} or
+ * {@link #flush()} throws its exception. {@link #close()} stops all threads.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ * @see Song#write(java.io.File, java.io.File)
+ */
+class OverlapAddPipeline implements Closeable {
+
+    private static final int FRAME_QUEUE_CAPACITY = 8;
+    private static final int OUTPUT_QUEUE_CAPACITY = 32;
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    /** Marks the end of the OLA output for one frame. */
+    private static final AudioBuffer END_OF_ROW = new RealAudioBuffer(-1, new float[0], null);
+    /** Marks the end of all frames, i.e. the OLA output after it has been flushed. */
+    private static final AudioBuffer END_OF_SIGNAL = new RealAudioBuffer(-1, new float[0], null);
+
+    private final List<OLA> olaProcessors;
+    private final List<QueueSink> sinks = new ArrayList<>();
+    private final List<BlockingQueue<AudioBuffer>> frameQueues = new ArrayList<>();
+    private final ExecutorService executor;
+    private final CompletionService<Void> completionService;
+    private int runningTasks;
+
+    /**
+     * @param olaProcessors one OLA processor per channel
+     * @param channelJoin join, fed with the output of all OLA processors in channel order
+     */
+    public OverlapAddPipeline(final List<OLA> olaProcessors, final SignalProcessor<AudioBuffer, ?> channelJoin) {
+        this.olaProcessors = olaProcessors;
+        this.executor = Executors.newFixedThreadPool(olaProcessors.size() + 1, r -> {
+            final Thread thread = new Thread(r, "OverlapAdd-" + THREAD_COUNT.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.completionService = new ExecutorCompletionService<>(executor);
+        final List<BlockingQueue<AudioBuffer>> outputQueues = new ArrayList<>();
+        for (final OLA olaProcessor : olaProcessors) {
+            final BlockingQueue<AudioBuffer> frames = new ArrayBlockingQueue<>(FRAME_QUEUE_CAPACITY);
+            final BlockingQueue<AudioBuffer> output = new ArrayBlockingQueue<>(OUTPUT_QUEUE_CAPACITY);
+            final QueueSink sink = new QueueSink(output);
+            olaProcessor.connectTo(sink);
+            frameQueues.add(frames);
+            outputQueues.add(output);
+            sinks.add(sink);
+            submit(() -> overlapAdd(olaProcessor, frames, output));
+        }
+        submit(() -> join(outputQueues, channelJoin));
+    }
+
+    /**
+     * Hands a frame to the OLA processor of the given channel. Blocks, if the processor is behind.
+     *
+     * @param channel channel
+     * @param frame frame
+     * @throws IOException if overlap-adding or joining has failed
+     */
+    public void process(final int channel, final AudioBuffer frame) throws IOException {
+        put(frameQueues.get(channel), frame);
+    }
+
+    /**
+     * Flushes all OLA processors and the join, and waits until everything has been processed.
+     *
+     * @throws IOException if overlap-adding or joining has failed
+     */
+    public void flush() throws IOException {
+        for (final BlockingQueue<AudioBuffer> frames : frameQueues) {
+            put(frames, END_OF_SIGNAL);
+        }
+        try {
+            while (runningTasks > 0) {
+                final Future<Void> task = completionService.take();
+                runningTasks--;
+                get(task);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for overlap-add");
+        }
+    }
+
+    /**
+     * Stops all threads and disconnects the OLA processors from this pipeline.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        for (int channel = 0; channel < olaProcessors.size(); channel++) {
+            olaProcessors.get(channel).disconnectFrom(sinks.get(channel));
+        }
+    }
+
+    private void submit(final Callable<Void> task) {
+        completionService.submit(task);
+        runningTasks++;
+    }
+
+    /**
+     * Puts a buffer into a queue, while watching out for threads that have stopped,
+     * as their queues would never become empty again.
+     */
+    private void put(final BlockingQueue<AudioBuffer> queue, final AudioBuffer buffer) throws IOException {
+        try {
+            while (!queue.offer(buffer, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                final Future<Void> task = completionService.poll();
+                if (task != null) {
+                    runningTasks--;
+                    get(task);
+                    throw new IOException("Overlap-add stopped unexpectedly");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for overlap-add");
+        }
+    }
+
+    private static void get(final Future<Void> task) throws IOException, InterruptedException {
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause().toString(), e.getCause());
+        }
+    }
+
+    private static Void overlapAdd(final OLA olaProcessor, final BlockingQueue<AudioBuffer> frames,
+                                   final BlockingQueue<AudioBuffer> output) throws IOException, InterruptedException {
+        AudioBuffer frame;
+        while ((frame = frames.take()) != END_OF_SIGNAL) {
+            olaProcessor.process(frame);
+            output.put(END_OF_ROW);
+        }
+        olaProcessor.flush();
+        output.put(END_OF_SIGNAL);
+        return null;
+    }
+
+    private static Void join(final List<BlockingQueue<AudioBuffer>> outputQueues,
+                             final SignalProcessor<AudioBuffer, ?> channelJoin) throws IOException, InterruptedException {
+        boolean done = false;
+        while (!done) {
+            // one row, channel by channel
+            for (final BlockingQueue<AudioBuffer> output : outputQueues) {
+                AudioBuffer buffer;
+                while ((buffer = output.take()) != END_OF_ROW && buffer != END_OF_SIGNAL) {
+                    channelJoin.process(buffer);
+                }
+                if (buffer == END_OF_SIGNAL) {
+                    // all channels have the same number of rows, so they all end in this round
+                    channelJoin.flush();
+                    done = true;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Puts everything it receives into a queue.
+     */
+    private static class QueueSink extends AbstractSignalProcessor<AudioBuffer, AudioBuffer> {
+
+        private final BlockingQueue<AudioBuffer> queue;
+
+        public QueueSink(final BlockingQueue<AudioBuffer> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        protected AudioBuffer processNext(final AudioBuffer buffer) throws IOException {
+            try {
+                queue.put(buffer);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for join");
+            }
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import com.tagtraum.jipes.math.AbstractMatrix;
+import com.tagtraum.jipes.math.Matrix;
+
+import java.util.stream.IntStream;
+
+/**
+ * Mask with values in {@code [0, 1]}, quantized to 8 bits, i.e. stored in a quarter of the memory of
+ * a {@code float} matrix. Values are dequantized via a lookup table.
+ * The {@link #inverse() inverse} mask shares the quantized values.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ * @see Song#setQuantizedMasks(boolean)
+ */
+public class QuantizedMask extends AbstractMatrix {
+
+    private static final float[] VALUES = new float[256];
+    private static final float[] INVERSE_VALUES = new float[256];
+
+    static {
+        for (int q = 0; q < 256; q++) {
+            VALUES[q] = q / 255f;
+            INVERSE_VALUES[q] = (255 - q) / 255f;
+        }
+    }
+
+    private final byte[][] values;
+    private final int columns;
+    private final float[] lookupTable;
+
+    private QuantizedMask(final byte[][] values, final int columns, final boolean inverse) {
+        this.values = values;
+        this.columns = columns;
+        this.lookupTable = inverse ? INVERSE_VALUES : VALUES;
+    }
+
+    /**
+     * Quantizes the given mask. Values outside of {@code [0, 1]} are clamped.
+     *
+     * @param mask mask
+     * @return quantized mask
+     */
+    public static QuantizedMask quantize(final Matrix mask) {
+        if (mask instanceof QuantizedMask) return (QuantizedMask) mask;
+        final int columns = mask.getNumberOfColumns();
+        // one array per row, so that the number of cells is not limited to 2^31
+        final byte[][] values = new byte[mask.getNumberOfRows()][];
+        final int blockSize = Song.getBlockSize(values.length);
+        IntStream.range(0, (values.length + blockSize - 1) / blockSize)
+                .parallel()
+                .forEach(
+                        (block) -> {
+                            final float[] buffer = mask instanceof DenseMatrix ? new float[columns] : null;
+                            final int end = Math.min(values.length, (block + 1) * blockSize);
+                            for (int row = block * blockSize; row < end; row++) {
+                                final float[] source;
+                                if (mask instanceof DenseMatrix) {
+                                    source = buffer;
+                                    ((DenseMatrix) mask).copyRow(row, source, 0);
+                                } else {
+                                    source = mask.getRow(row);
+                                }
+                                final byte[] quantized = new byte[columns];
+                                for (int column = 0; column < columns; column++) {
+                                    quantized[column] = (byte) Math.round(Math.max(0f, Math.min(1f, source[column])) * 255f);
+                                }
+                                values[row] = quantized;
+                            }
+                        }
+                );
+        return new QuantizedMask(values, columns, false);
+    }
+
+    /**
+     * Inverse mask, i.e. {@code 1 - m} for each value {@code m} of this mask.
+     *
+     * @return inverse mask, sharing the quantized values with this mask
+     */
+    public QuantizedMask inverse() {
+        return new QuantizedMask(values, columns, lookupTable == VALUES);
+    }
+
+    @Override
+    public float get(final int row, final int column) {
+        return lookupTable[values[row][column] & 0xFF];
+    }
+
+    @Override
+    public float[] getRow(final int row) {
+        final float[] dest = new float[columns];
+        copyRow(row, dest, 0);
+        return dest;
+    }
+
+    /**
+     * Dequantizes a row into the given array.
+     *
+     * @param row row
+     * @param dest destination
+     * @param offset offset into the destination
+     */
+    public void copyRow(final int row, final float[] dest, final int offset) {
+        final byte[] quantized = values[row];
+        for (int column = 0; column < columns; column++) {
+            dest[offset + column] = lookupTable[quantized[column] & 0xFF];
+        }
+    }
+
+    @Override
+    public int getNumberOfRows() {
+        return values.length;
+    }
+
+    @Override
+    public int getNumberOfColumns() {
+        return columns;
+    }
+
+    @Override
+    public boolean isZeroPadded() {
+        return false;
+    }
+
+    @Override
+    protected float get(final int index) {
+        return get(index / columns, index % columns);
+    }
+
+    @Override
+    public String toString() {
+        return "QuantizedMask{" +
+                "rows=" + values.length +
+                ", columns=" + columns +
+                ", inverse=" + (lookupTable == INVERSE_VALUES) +
+                '}';
+    }
+}
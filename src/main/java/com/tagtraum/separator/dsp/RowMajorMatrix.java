@@ -0,0 +1,113 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import com.tagtraum.jipes.math.AbstractMatrix;
+
+/**
+ * Dense matrix that stores its values row by row in a single {@code float} array.
+ * Unlike jipes' views, rows can be accessed directly via {@link #getData()} and
+ * {@link #getOffset(int)}, which allows tight loops without per-element virtual calls.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class RowMajorMatrix extends AbstractMatrix implements DenseMatrix {
+
+    private final int rows;
+    private final int columns;
+    private final float[] data;
+
+    public RowMajorMatrix(final int rows, final int columns) {
+        this(rows, columns, new float[rows * columns]);
+    }
+
+    /**
+     * Creates a matrix backed by the given array.
+     *
+     * @param rows rows
+     * @param columns columns
+     * @param data backing array, must be at least {@code rows * columns} long. Not copied.
+     */
+    public RowMajorMatrix(final int rows, final int columns, final float[] data) {
+        if (data.length < (long)rows * columns) throw new IllegalArgumentException("Array is too short for " + rows + "x" + columns + " matrix: " + data.length);
+        this.rows = rows;
+        this.columns = columns;
+        this.data = data;
+    }
+
+    /**
+     * Backing array. Row {@code r} starts at {@link #getOffset(int) getOffset(r)}.
+     *
+     * @return backing array
+     */
+    public float[] getData() {
+        return data;
+    }
+
+    /**
+     * @param row row
+     * @return index of the first value of the given row in {@link #getData()}
+     */
+    public int getOffset(final int row) {
+        return row * columns;
+    }
+
+    @Override
+    public float get(final int row, final int column) {
+        return data[row * columns + column];
+    }
+
+    @Override
+    public void set(final int row, final int column, final float value) {
+        data[row * columns + column] = value;
+    }
+
+    @Override
+    public float[] getRow(final int row) {
+        final float[] values = new float[columns];
+        copyRow(row, values, 0);
+        return values;
+    }
+
+    @Override
+    public void copyRow(final int row, final float[] dest, final int offset) {
+        System.arraycopy(data, row * columns, dest, offset, columns);
+    }
+
+    @Override
+    public void setRow(final int row, final float[] values, final int offset) {
+        System.arraycopy(values, offset, data, row * columns, columns);
+    }
+
+    @Override
+    public int getNumberOfRows() {
+        return rows;
+    }
+
+    @Override
+    public int getNumberOfColumns() {
+        return columns;
+    }
+
+    @Override
+    public boolean isZeroPadded() {
+        return false;
+    }
+
+    @Override
+    protected float get(final int index) {
+        return data[index];
+    }
+
+    @Override
+    public String toString() {
+        return "RowMajorMatrix{" +
+                "rows=" + rows +
+                ", columns=" + columns +
+                '}';
+    }
+}
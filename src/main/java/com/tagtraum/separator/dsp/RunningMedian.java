@@ -0,0 +1,216 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+/**
+ * Sliding-window median filter with window length {@code 2 * halfWindow + 1}.
+ * <p>
+ * The window is kept in two indexed heaps, a max-heap holding the lower half and a
+ * min-heap holding the upper half of the values. Sliding the window by one replaces
+ * the oldest value with the newest one, which costs {@code O(log L)} instead of
+ * {@code O(L log L)} for sorting each window from scratch.
+ * <p>
+ * The signal is padded on both sides by repeating its first and last value, i.e. the
+ * results are identical to calling {@link com.tagtraum.jipes.math.Floats#median(float[], int, int)}
+ * for each position of an accordingly padded array.
+ * <p>
+ * Instances are not thread-safe, but may be reused for any number of signals.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public final class RunningMedian {
+
+    private final int halfWindow;
+    private final int window;
+    /** Value per window slot. Slot {@code k % window} holds padded value {@code k}. */
+    private final float[] values;
+    /** Position of a slot in the heaps. {@code p >= 0} is an index into low, {@code p < 0} encodes {@code -p-1} in high. */
+    private final int[] positions;
+    /** Max-heap of slots, lower half of the window (incl. the median). */
+    private final int[] low;
+    /** Min-heap of slots, upper half of the window. */
+    private final int[] high;
+    private int lowSize;
+    private int highSize;
+
+    /**
+     * @param halfWindow the window length is {@code 2 * halfWindow + 1}
+     */
+    public RunningMedian(final int halfWindow) {
+        if (halfWindow < 0) throw new IllegalArgumentException("Half window must not be negative: " + halfWindow);
+        this.halfWindow = halfWindow;
+        this.window = 2 * halfWindow + 1;
+        this.values = new float[window];
+        this.positions = new int[window];
+        // one extra element each, as a heap may temporarily grow before rebalancing
+        this.low = new int[halfWindow + 2];
+        this.high = new int[halfWindow + 1];
+    }
+
+    public int getHalfWindow() {
+        return halfWindow;
+    }
+
+    /**
+     * Filters {@code length} values from {@code source} and writes the medians to {@code dest}.
+     * Strides allow filtering along columns or diagonals of row-major data without copying.
+     *
+     * @param source source values
+     * @param sourceOffset index of the first source value
+     * @param sourceStride distance between two consecutive source values
+     * @param length number of values
+     * @param dest destination
+     * @param destOffset index of the first median
+     * @param destStride distance between two consecutive medians in {@code dest}
+     */
+    public void filter(final float[] source, final int sourceOffset, final int sourceStride, final int length,
+                       final float[] dest, final int destOffset, final int destStride) {
+        if (length <= 0) return;
+        lowSize = 0;
+        highSize = 0;
+        for (int k = 0; k < window; k++) {
+            insert(k, source[sourceOffset + clamp(k - halfWindow, length) * sourceStride]);
+        }
+        dest[destOffset] = values[low[0]];
+        for (int i = 1; i < length; i++) {
+            // replace oldest padded value (i - 1) with the newest one (i - 1 + window)
+            final int k = i - 1 + window;
+            replace((i - 1) % window, source[sourceOffset + clamp(k - halfWindow, length) * sourceStride]);
+            dest[destOffset + i * destStride] = values[low[0]];
+        }
+    }
+
+    private static int clamp(final int index, final int length) {
+        return index < 0 ? 0 : index >= length ? length - 1 : index;
+    }
+
+    private void insert(final int slot, final float value) {
+        values[slot] = value;
+        if (lowSize == 0 || value <= values[low[0]]) {
+            low[lowSize] = slot;
+            positions[slot] = lowSize;
+            siftUpLow(lowSize++);
+        } else {
+            high[highSize] = slot;
+            positions[slot] = -highSize - 1;
+            siftUpHigh(highSize++);
+        }
+        // keep lowSize == highSize or lowSize == highSize + 1
+        if (lowSize > highSize + 1) {
+            final int top = low[0];
+            moveLast(low, --lowSize, true);
+            high[highSize] = top;
+            positions[top] = -highSize - 1;
+            siftUpHigh(highSize++);
+        } else if (highSize > lowSize) {
+            final int top = high[0];
+            moveLast(high, --highSize, false);
+            low[lowSize] = top;
+            positions[top] = lowSize;
+            siftUpLow(lowSize++);
+        }
+    }
+
+    /**
+     * Removes the root of a heap by moving its last element to the root.
+     */
+    private void moveLast(final int[] heap, final int last, final boolean isLow) {
+        heap[0] = heap[last];
+        if (last == 0) return;
+        if (isLow) {
+            positions[heap[0]] = 0;
+            siftDownLow(0);
+        } else {
+            positions[heap[0]] = -1;
+            siftDownHigh(0);
+        }
+    }
+
+    private void replace(final int slot, final float value) {
+        final float old = values[slot];
+        values[slot] = value;
+        final int position = positions[slot];
+        if (position >= 0) {
+            if (value > old) siftUpLow(position);
+            else siftDownLow(position);
+        } else {
+            if (value < old) siftUpHigh(-position - 1);
+            else siftDownHigh(-position - 1);
+        }
+        // restore order between the two halves
+        if (highSize > 0 && values[low[0]] > values[high[0]]) {
+            final int lowTop = low[0];
+            final int highTop = high[0];
+            low[0] = highTop;
+            positions[highTop] = 0;
+            high[0] = lowTop;
+            positions[lowTop] = -1;
+            siftDownLow(0);
+            siftDownHigh(0);
+        }
+    }
+
+    private void siftUpLow(int i) {
+        final int slot = low[i];
+        final float value = values[slot];
+        while (i > 0) {
+            final int parent = (i - 1) >> 1;
+            if (values[low[parent]] >= value) break;
+            low[i] = low[parent];
+            positions[low[i]] = i;
+            i = parent;
+        }
+        low[i] = slot;
+        positions[slot] = i;
+    }
+
+    private void siftDownLow(int i) {
+        final int slot = low[i];
+        final float value = values[slot];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= lowSize) break;
+            if (child + 1 < lowSize && values[low[child + 1]] > values[low[child]]) child++;
+            if (values[low[child]] <= value) break;
+            low[i] = low[child];
+            positions[low[i]] = i;
+            i = child;
+        }
+        low[i] = slot;
+        positions[slot] = i;
+    }
+
+    private void siftUpHigh(int i) {
+        final int slot = high[i];
+        final float value = values[slot];
+        while (i > 0) {
+            final int parent = (i - 1) >> 1;
+            if (values[high[parent]] <= value) break;
+            high[i] = high[parent];
+            positions[high[i]] = -i - 1;
+            i = parent;
+        }
+        high[i] = slot;
+        positions[slot] = -i - 1;
+    }
+
+    private void siftDownHigh(int i) {
+        final int slot = high[i];
+        final float value = values[slot];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= highSize) break;
+            if (child + 1 < highSize && values[high[child + 1]] < values[high[child]]) child++;
+            if (values[high[child]] >= value) break;
+            high[i] = high[child];
+            positions[high[i]] = -i - 1;
+            i = child;
+        }
+        high[i] = slot;
+        positions[slot] = -i - 1;
+    }
+}
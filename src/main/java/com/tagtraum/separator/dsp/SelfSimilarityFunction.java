@@ -9,6 +9,7 @@ package com.tagtraum.separator.dsp;
 import com.tagtraum.jipes.math.*;
 
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Function;
 import java.util.function.ToDoubleBiFunction;
 import java.util.logging.Level;
@@ -25,6 +26,8 @@ import java.util.stream.IntStream;
 public class SelfSimilarityFunction implements Function<Channel, Matrix> {
 
     private static final Logger LOG = Logger.getLogger(SelfSimilarityFunction.class.getName());
+    /** Number of rows per tile when computing the banded self-similarity. */
+    private static final int TILE_SIZE = 32;
 
     // only let the upper third through
     public static final ToDoubleBiFunction<float[], float[]> FULL_COSINE_SIMILARITY = (float[] a, float[] b) -> Math.max(0, ((float)Floats.cosineSimilarity(a, b)) * 2 - 1);
@@ -45,90 +48,296 @@ public class SelfSimilarityFunction implements Function<Channel, Matrix> {
 
     @Override
     public Matrix apply(final Channel channel) {
-
-        LOG.log(Level.FINE, "Creating self-similarity matrix...");
-        final Matrix normMatrix = normalizeRows(channel.getMagnitudes());
-        final Matrix selfSimilarity = selfSimilarity(normMatrix, similarityFunction);
-        LOG.log(Level.FINE, "Got view...");
-
-        final int distanceInRows = bandwidth < 0 ? selfSimilarity.getNumberOfRows() : bandwidth;
-        final Matrix medianMatrix = diagonalMedianMatrix(selfSimilarity, 10, distanceInRows); // length is hop size dependent!!
-        LOG.log(Level.FINE, "Created diagonal median matrix...");
-        final Matrix sharpenedMatrix = sharpenDiagonally(medianMatrix);
+        final Matrix sharpenedMatrix = sharpenDiagonally(diagonalMedianMatrix(channel));
         LOG.log(Level.FINE, "Sharpened...");
         //final Matrix longPaths = maskShortDiagonals(sharpenedMatrix, 60); // length is hop size dependent!!
         //System.out.println("Removed short paths...");
         return sharpenedMatrix;
     }
 
-    private Matrix normalizeRows(final Matrix m) {
-        final FullMatrix normMatrix = new FullMatrix(m.getNumberOfRows(), m.getNumberOfColumns());
-        IntStream.range(0, m.getNumberOfRows())
+    /**
+     * Computes the diagonally sharpened self-similarity matrix like {@link #apply(Channel)}, but
+     * instead of a view returns, for each row, a compact list of the most similar other rows.
+     * Only rows within the {@link #getBandwidth() bandwidth} and with a positive similarity are considered.
+     * This takes time linear in the number of rows.
+     *
+     * @param channel channel
+     * @param minDistance min distance between a row and its neighbours
+     * @param maxNeighbours max number of neighbours per row
+     * @return neighbour lists
+     */
+    public NeighbourLists neighbours(final Channel channel, final int minDistance, final int maxNeighbours) {
+        final BandMatrix medianMatrix = diagonalMedianMatrix(channel);
+        final int size = medianMatrix.getNumberOfRows();
+        final int band = medianMatrix.getBandwidth();
+        final NeighbourLists neighbourLists = new NeighbourLists(size, maxNeighbours);
+        IntStream.range(0, size)
                 .parallel()
                 .forEach(
                         (row) -> {
-                            final float[] r = m.getRow(row);
-                            final float norm = (float) Floats.euclideanNorm(r);
-                            if (norm != 0) {
-                                for (int column = 0; column < m.getNumberOfColumns(); column++) {
-                                    normMatrix.set(row, column, r[column] / norm);
+                            for (int column = Math.max(0, row - band + 1); column < Math.min(size, row + band); column++) {
+                                final int distance = Math.abs(row - column);
+                                if (distance < Math.max(1, minDistance)) continue;
+                                final float similarity = sharpened(medianMatrix, row, column);
+                                if (similarity > 0) {
+                                    neighbourLists.offer(row, column, similarity);
                                 }
                             }
                         }
                 );
-        return normMatrix;
+        LOG.log(Level.FINE, "Created neighbour lists...");
+        return neighbourLists;
+    }
+
+    private BandMatrix diagonalMedianMatrix(final Channel channel) {
+        LOG.log(Level.FINE, "Creating self-similarity matrix...");
+        final Matrix magnitudes = channel.getMagnitudes();
+        final Storage storage = channel.getSong().getStorage();
+        // rows are normalized on the fly, so that no copy of the magnitudes is needed
+        final float[] norms = norms(magnitudes);
+        final int distanceInRows = Math.max(1, bandwidth < 0 ? magnitudes.getNumberOfRows() : bandwidth);
+        final Matrix selfSimilarity = similarityFunction == NORM_FULL_COSINE_SIMILARITY
+                ? normalizedSelfSimilarity(magnitudes, norms, distanceInRows, storage)
+                : selfSimilarity(magnitudes, norms, similarityFunction, distanceInRows, storage);
+        LOG.log(Level.FINE, "Computed banded self-similarity...");
+
+        final BandMatrix medianMatrix = diagonalMedianMatrix(selfSimilarity, 10, distanceInRows, storage); // length is hop size dependent!!
+        LOG.log(Level.FINE, "Created diagonal median matrix...");
+        return medianMatrix;
+    }
+
+    /**
+     * Euclidean norm of each row.
+     *
+     * @param m matrix
+     * @return norms
+     */
+    private static float[] norms(final Matrix m) {
+        final int rows = m.getNumberOfRows();
+        final int columns = m.getNumberOfColumns();
+        final float[] norms = new float[rows];
+        final int blockSize = Song.getBlockSize(rows);
+        IntStream.range(0, (rows + blockSize - 1) / blockSize)
+                .parallel()
+                .forEach(
+                        (block) -> {
+                            final float[] buffer = new float[columns];
+                            final int end = Math.min(rows, (block + 1) * blockSize);
+                            for (int row = block * blockSize; row < end; row++) {
+                                norms[row] = (float) Floats.euclideanNorm(copyRow(m, row, buffer));
+                            }
+                        }
+                );
+        return norms;
+    }
+
+    private static float[] copyRow(final Matrix m, final int row, final float[] buffer) {
+        if (m instanceof DenseMatrix) {
+            ((DenseMatrix) m).copyRow(row, buffer, 0);
+            return buffer;
+        }
+        return m.getRow(row);
     }
 
+    /**
+     * Copies a row divided by its norm. Rows with norm {@code 0} are all zero.
+     *
+     * @param m matrix
+     * @param norms row norms
+     * @param row row
+     * @param buffer buffer for a single row
+     * @param dest destination
+     * @param offset offset into the destination
+     */
+    private static void copyNormalizedRow(final Matrix m, final float[] norms, final int row, final float[] buffer,
+                                          final float[] dest, final int offset) {
+        final float[] r = copyRow(m, row, buffer);
+        final float norm = norms[row];
+        final int columns = m.getNumberOfColumns();
+        if (norm != 0) {
+            for (int column = 0; column < columns; column++) {
+                dest[offset + column] = r[column] / norm;
+            }
+        } else {
+            Arrays.fill(dest, offset, offset + columns, 0f);
+        }
+    }
 
     /**
-     * Creates a self-similarity view of the given matrix, interpreting rows as features vectors.
+     * Computes the band of a self-similarity matrix, interpreting normalized rows as features vectors.
      *
      * @param m source matrix
+     * @param norms row norms of the source matrix
      * @param similarityFunction similarity function
-     * @return self-similarity matrix
+     * @param bandwidth number of diagonals to compute
+     * @param storage where to keep the band
+     * @return banded self-similarity matrix
      */
-    private Matrix selfSimilarity(final Matrix m, final ToDoubleBiFunction<float[], float[]> similarityFunction) {
-        return new AbstractSelfSimilarityMatrix(m) {
-            @Override
-            public float get(final int row, final int column) {
-                return (float)similarityFunction.applyAsDouble(m.getRow(row), m.getRow(column));
-            }
+    private static BandMatrix selfSimilarity(final Matrix m, final float[] norms, final ToDoubleBiFunction<float[], float[]> similarityFunction,
+                                             final int bandwidth, final Storage storage) {
+        final int size = m.getNumberOfRows();
+        final int columns = m.getNumberOfColumns();
+        final BandMatrix selfSimilarity = new BandMatrix(size, bandwidth, storage);
+        IntStream.range(0, size)
+                .parallel()
+                .forEach(
+                        (row) -> {
+                            final float[] buffer = new float[columns];
+                            final float[] a = new float[columns];
+                            final float[] b = new float[columns];
+                            copyNormalizedRow(m, norms, row, buffer, a, 0);
+                            for (int column = row; column < Math.min(size, row + selfSimilarity.getBandwidth()); column++) {
+                                copyNormalizedRow(m, norms, column, buffer, b, 0);
+                                selfSimilarity.set(row, column, (float) similarityFunction.applyAsDouble(a, b));
+                            }
+                        }
+                );
+        return selfSimilarity;
+    }
 
-        };
+    /**
+     * Computes the band of a self-similarity matrix for normalized rows,
+     * using {@link #NORM_FULL_COSINE_SIMILARITY}.
+     * <p>
+     * This is a blocked matrix multiplication {@code m * m^T} restricted to the band: the rows
+     * are cut into tiles of {@link #TILE_SIZE}, and for each pair of row tiles
+     * overlapping the band, both tiles are normalized into small buffers and all dot products are
+     * computed while they are in cache. Because the result is symmetric, only the upper band is computed.
+     * Blocks of row tiles are processed in parallel and write to disjoint cells of the band storage.
+     *
+     * @param m source matrix
+     * @param norms row norms of the source matrix
+     * @param bandwidth number of diagonals to compute
+     * @param storage where to keep the band
+     * @return banded self-similarity matrix
+     */
+    private static BandMatrix normalizedSelfSimilarity(final Matrix m, final float[] norms, final int bandwidth, final Storage storage) {
+        final int size = m.getNumberOfRows();
+        final int columns = m.getNumberOfColumns();
+        final BandMatrix selfSimilarity = new BandMatrix(size, bandwidth, storage);
+        final int band = selfSimilarity.getBandwidth();
+        final int tiles = (size + TILE_SIZE - 1) / TILE_SIZE;
+        final int tilesPerBlock = Math.max(1, tiles / (ForkJoinPool.getCommonPoolParallelism() * 8));
+        IntStream.range(0, (tiles + tilesPerBlock - 1) / tilesPerBlock)
+                .parallel()
+                .forEach(
+                        (block) -> {
+                            final float[] buffer = new float[columns];
+                            final float[] rowTile = new float[TILE_SIZE * columns];
+                            final float[] columnTile = new float[TILE_SIZE * columns];
+                            final int endTile = Math.min(tiles, (block + 1) * tilesPerBlock);
+                            for (int tile = block * tilesPerBlock; tile < endTile; tile++) {
+                                final int firstRow = tile * TILE_SIZE;
+                                final int lastRow = Math.min(size, firstRow + TILE_SIZE);
+                                final int lastColumn = Math.min(size, lastRow - 1 + band);
+                                for (int row = firstRow; row < lastRow; row++) {
+                                    copyNormalizedRow(m, norms, row, buffer, rowTile, (row - firstRow) * columns);
+                                }
+                                for (int firstColumn = firstRow; firstColumn < lastColumn; firstColumn += TILE_SIZE) {
+                                    final int columnTileEnd = Math.min(lastColumn, firstColumn + TILE_SIZE);
+                                    for (int column = firstColumn; column < columnTileEnd; column++) {
+                                        copyNormalizedRow(m, norms, column, buffer, columnTile, (column - firstColumn) * columns);
+                                    }
+                                    for (int row = firstRow; row < lastRow; row++) {
+                                        final int a = (row - firstRow) * columns;
+                                        final int from = Math.max(row, firstColumn);
+                                        final int to = Math.min(columnTileEnd, row + band);
+                                        for (int column = from; column < to; column++) {
+                                            final float dot = dotProduct(rowTile, a, columnTile, (column - firstColumn) * columns, columns);
+                                            selfSimilarity.set(row, column, Math.max(0, dot * 2 - 1));
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                );
+        return selfSimilarity;
+    }
+
+    private static float dotProduct(final float[] x, final int a, final float[] y, final int b, final int length) {
+        float sum0 = 0;
+        float sum1 = 0;
+        float sum2 = 0;
+        float sum3 = 0;
+        int i = 0;
+        for (; i < length - 3; i += 4) {
+            sum0 += x[a + i] * y[b + i];
+            sum1 += x[a + i + 1] * y[b + i + 1];
+            sum2 += x[a + i + 2] * y[b + i + 2];
+            sum3 += x[a + i + 3] * y[b + i + 3];
+        }
+        for (; i < length; i++) {
+            sum0 += x[a + i] * y[b + i];
+        }
+        return (sum0 + sum1) + (sum2 + sum3);
     }
 
     /**
      * Creates a new matrix that contains diagonal medians.
+     * <p>
+     * Each diagonal is streamed through a {@link RunningMedian}. If source and result are {@link BandMatrix}es
+     * on the heap, diagonals are read from and written to their contiguous storage directly, otherwise they
+     * are copied through buffers. Blocks of diagonals are distributed over the fork/join common pool.
      *
      * @param m source matrix, must be square
      * @param length the length of the median region is {@code length * 2 + 1}
+     * @param maxDistanceFromCenter number of diagonals to compute, incl. the main diagonal
      * @return new matrix with median values
      */
-    public static Matrix diagonalMedianMatrix(final Matrix m, final int length, final int maxDistanceFromCenter) {
+    public static BandMatrix diagonalMedianMatrix(final Matrix m, final int length, final int maxDistanceFromCenter) {
+        return diagonalMedianMatrix(m, length, maxDistanceFromCenter, Storage.HEAP);
+    }
+
+    /**
+     * Creates a new matrix that contains diagonal medians.
+     *
+     * @param m source matrix, must be square
+     * @param length the length of the median region is {@code length * 2 + 1}
+     * @param maxDistanceFromCenter number of diagonals to compute, incl. the main diagonal
+     * @param storage where to keep the result
+     * @return new matrix with median values
+     * @see #diagonalMedianMatrix(Matrix, int, int)
+     */
+    public static BandMatrix diagonalMedianMatrix(final Matrix m, final int length, final int maxDistanceFromCenter, final Storage storage) {
         final int size = m.getNumberOfColumns();
         if (m.getNumberOfColumns() != m.getNumberOfRows()) throw new IllegalArgumentException("Matrix must be square");
-        final SymmetricBandMatrix medianMatrix = new SymmetricBandMatrix(m.getNumberOfColumns(), maxDistanceFromCenter*2+1, new FloatBackingBuffer(true), 0f, false);
+        final BandMatrix medianMatrix = new BandMatrix(size, Math.max(1, maxDistanceFromCenter), storage);
+        final float[] medians = medianMatrix.getData();
+        final int diagonals = Math.min(size, maxDistanceFromCenter);
+        final int blockSize = Song.getBlockSize(diagonals);
 
-        //for (int row=0; row<Math.min(size, maxDistanceFromCenter); row++) {
-        //}
-        IntStream.range(0, Math.min(size, maxDistanceFromCenter))
+        IntStream.range(0, (diagonals + blockSize - 1) / blockSize)
                 .parallel()
                 .forEach(
-                        (row) -> {
-                            // create a diagonal array, padded on each side
-                            final int unpaddedLength = size - row;
-                            final int paddedLength = unpaddedLength + 2 * length;
-                            final float[] diagonal = new float[paddedLength];
-                            for (int d = 0; d < unpaddedLength; d++) {
-                                diagonal[d + length] = m.get(row + d, d);
-                            }
-                            // add padding by repeating first and last value
-                            Arrays.fill(diagonal, 0, length, diagonal[length]);
-                            Arrays.fill(diagonal, unpaddedLength + length, diagonal.length, diagonal[unpaddedLength + length - 1]);
-
-                            for (int d = 0; d < unpaddedLength; d++) {
-                                final float median = Floats.median(diagonal, d, 2 * length + 1);
-                                medianMatrix.set(row + d, d, median);
+                        (block) -> {
+                            // scratch is allocated per block, so that nothing outlives this call
+                            final RunningMedian runningMedian = new RunningMedian(length);
+                            float[] values = null;
+                            final float[] dest = medians != null ? medians : new float[size];
+                            final int end = Math.min(diagonals, (block + 1) * blockSize);
+                            for (int diagonal = block * blockSize; diagonal < end; diagonal++) {
+                                final int diagonalLength = size - diagonal;
+                                final int destOffset = medians != null ? (int) medianMatrix.getDiagonalOffset(diagonal) : 0;
+                                if (m instanceof BandMatrix && diagonal < ((BandMatrix) m).getBandwidth()
+                                        && ((BandMatrix) m).getData() != null) {
+                                    final BandMatrix band = (BandMatrix) m;
+                                    runningMedian.filter(band.getData(), (int) band.getDiagonalOffset(diagonal), 1, diagonalLength,
+                                            dest, destOffset, 1);
+                                } else {
+                                    if (values == null) values = new float[size];
+                                    if (m instanceof BandMatrix && diagonal < ((BandMatrix) m).getBandwidth()) {
+                                        ((BandMatrix) m).copyDiagonal(diagonal, values, 0);
+                                    } else {
+                                        for (int d = 0; d < diagonalLength; d++) {
+                                            values[d] = m.get(diagonal + d, d);
+                                        }
+                                    }
+                                    runningMedian.filter(values, 0, 1, diagonalLength,
+                                            dest, destOffset, 1);
+                                }
+                                if (medians == null) {
+                                    medianMatrix.setDiagonal(diagonal, dest, 0);
+                                }
                             }
                         }
                 );
@@ -150,18 +359,7 @@ public class SelfSimilarityFunction implements Function<Channel, Matrix> {
 
             @Override
             public float get(final int row, final int column) {
-                final int size = m.getNumberOfColumns();
-                final float v = m.get(row, column);
-
-                final float right = m.get(Math.min(size - 1, row + 1), column);
-                if (right > v) return 0;
-                final float left = m.get(Math.max(0, row - 1), column);
-                if (left > v) return 0;
-                final float top = m.get(row, Math.min(size - 1, column+1));
-                if (top > v) return 0;
-                final float bottom = m.get(row, Math.max(0, column-1));
-                if (bottom > v) return 0;
-                return m.get(row, column);
+                return sharpened(m, row, column);
             }
 
             @Override
@@ -186,6 +384,30 @@ public class SelfSimilarityFunction implements Function<Channel, Matrix> {
         };
     }
 
+    /**
+     * Sharpened value of a single cell, i.e. zero, if a horizontally or vertically
+     * adjacent value is higher, the cell's value otherwise.
+     *
+     * @param m square matrix
+     * @param row row
+     * @param column column
+     * @return sharpened value
+     */
+    private static float sharpened(final Matrix m, final int row, final int column) {
+        final int size = m.getNumberOfColumns();
+        final float v = m.get(row, column);
+
+        final float right = m.get(Math.min(size - 1, row + 1), column);
+        if (right > v) return 0;
+        final float left = m.get(Math.max(0, row - 1), column);
+        if (left > v) return 0;
+        final float top = m.get(row, Math.min(size - 1, column+1));
+        if (top > v) return 0;
+        final float bottom = m.get(row, Math.max(0, column-1));
+        if (bottom > v) return 0;
+        return v;
+    }
+
     /**
      * Creates a view of the given matrix that masks diagonal paths that are shorter than the
      * given min length.
@@ -247,33 +469,4 @@ public class SelfSimilarityFunction implements Function<Channel, Matrix> {
 
         };
     }
-
-    private abstract static class AbstractSelfSimilarityMatrix extends AbstractMatrix {
-
-        private final Matrix m;
-
-        public AbstractSelfSimilarityMatrix(final Matrix m) {
-            this.m = m;
-        }
-
-        @Override
-        public int getNumberOfRows() {
-            return m.getNumberOfRows();
-        }
-
-        @Override
-        public int getNumberOfColumns() {
-            return m.getNumberOfRows();
-        }
-
-        @Override
-        public boolean isZeroPadded() {
-            return m.isZeroPadded();
-        }
-
-        @Override
-        protected float get(final int index) {
-            throw new UnsupportedOperationException();
-        }
-    }
 }
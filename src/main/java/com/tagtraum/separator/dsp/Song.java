@@ -16,10 +16,13 @@ import com.tagtraum.jipes.universal.Mapping;
 import javax.sound.sampled.*;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
 import java.util.function.Function;
 import java.util.logging.Level;
@@ -39,12 +42,39 @@ import static javax.sound.sampled.AudioSystem.NOT_SPECIFIED;
 public class Song {
 
     private static final Logger LOG = Logger.getLogger(Song.class.getName());
+    private static final int MIN_BLOCK_SIZE = 16;
+    /**
+     * Sample rate hop size and slice length refer to.
+     */
+    private static final float REFERENCE_SAMPLE_RATE = 44100f;
+    /**
+     * Max difference between two channels' samples, relative to their peak, for them to count as duplicates.
+     */
+    private static final float DUPLICATE_TOLERANCE = 1f / 32768f;
 
     private int sliceLengthInFrames = 2048;
     private int hopSizeInFrames = 512;
     private AudioFormat audioFormat;
     private final List<Channel> channels;
     private WindowFunction windowFunction;
+    private boolean streamingIngest;
+    private SpectrogramCache cache;
+    private Synthesis synthesis = Synthesis.GRIFFIN_LIM;
+    private Storage storage = Storage.HEAP;
+    private boolean quantizedMasks;
+    private boolean midMasks;
+    private boolean parallelChannels = true;
+    private Channel midChannel;
+    private float targetSampleRate = NOT_SPECIFIED;
+    private int targetChannels = NOT_SPECIFIED;
+    /**
+     * For each channel, the index of the first channel with the same signal, or {@code null} if all channels differ.
+     */
+    private int[] sourceChannels;
+    /**
+     * Number of separations this song is the result of, {@code 0} for a song that was read from a file.
+     */
+    private int separationDepth;
 
     public Song() {
         this.channels = new ArrayList<>();
@@ -53,32 +83,145 @@ public class Song {
     public void read(final File file) throws IOException, UnsupportedAudioFileException {
         try (final AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(file)) {
             final AudioFileFormat originalFileFormat = AudioSystem.getAudioFileFormat(file);
-            final AudioInputStream actualStream = get44_1kHzStereo16BitStream(audioInputStream);
+            final AudioInputStream actualStream = get16BitStream(audioInputStream, targetSampleRate, targetChannels);
             this.audioFormat = actualStream.getFormat();
-            final AudioSignalSource source = new AudioSignalSource(actualStream);
-            source.setNormalize(false);
-            final InterleavedChannelSplit channelSplit = new InterleavedChannelSplit();
-            for (int channel = 0; channel < audioFormat.getChannels(); channel++) {
-                final SignalPipeline<AudioBuffer, ?> collectorPipeline = new SignalPipeline<>(
-                        new SlidingWindow(sliceLengthInFrames, hopSizeInFrames),
-                        new SamplesCollector(getChannelSamplesId(channel), getSliceLengthInFrames())
-                );
-                channelSplit.connectTo(channel, collectorPipeline);
+            // keep window and hop durations, no matter the sample rate
+            final int hopSizeInFrames = getEffectiveHopSizeInFrames();
+            final int sliceLengthInFrames = getEffectiveSliceLengthInFrames();
+            final String cacheKey = cache == null ? null : cache.createKey(file, hopSizeInFrames, sliceLengthInFrames, audioFormat, storage);
+            if (cacheKey != null) {
+                final List<Channel> cachedChannels = cache.load(cacheKey, this);
+                if (cachedChannels != null) {
+                    channels.addAll(cachedChannels);
+                    sourceChannels = findSourceChannels(cachedChannels.stream().map(Channel::getSamples).toArray(WindowedSamples[]::new));
+                    LOG.log(Level.INFO, "Read " + channels.size() + " channels of " + file + " from cache " + cache.getDirectory());
+                    return;
+                }
+            }
+            readChannels(file, originalFileFormat, actualStream);
+            if (cacheKey != null) {
+                try {
+                    cache.store(cacheKey, this);
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Failed to cache spectrogram of " + file + ": " + e, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the raw samples of all channels. Overlapping windows are never collected, but cut from
+     * the samples on demand (see {@link WindowedSamples}). With {@link #isStreamingIngest() streaming ingest},
+     * each window is turned into magnitudes as soon as it arrives, otherwise all channels are analyzed
+     * in parallel after decoding. Channels that duplicate a previous channel share its magnitudes
+     * (with streaming ingest, the duplicate's own magnitudes are computed anyway, but discarded).
+     */
+    private void readChannels(final File file, final AudioFileFormat originalFileFormat, final AudioInputStream stream) throws IOException {
+        final AudioSignalSource source = new AudioSignalSource(stream);
+        source.setNormalize(false);
+        final InterleavedChannelSplit channelSplit = new InterleavedChannelSplit();
+        final int channelCount = audioFormat.getChannels();
+        final long frameLength = stream.getFrameLength();
+        final int expectedFrames = frameLength > 0 && frameLength < Integer.MAX_VALUE ? (int) frameLength : 0;
+        final int hopSizeInFrames = getEffectiveHopSizeInFrames();
+        final int sliceLengthInFrames = getEffectiveSliceLengthInFrames();
+        final SamplesRecorder[] recorders = new SamplesRecorder[channelCount];
+        final MagnitudesCollector[] collectors = new MagnitudesCollector[channelCount];
+        final WindowCounter[] counters = new WindowCounter[channelCount];
+        for (int channel = 0; channel < channelCount; channel++) {
+            recorders[channel] = new SamplesRecorder(getChannelSamplesId(channel), expectedFrames);
+            // windows are still cut by SlidingWindow, so that the number of rows is the same in both modes
+            final SlidingWindow slidingWindow = new SlidingWindow(sliceLengthInFrames, hopSizeInFrames);
+            if (streamingIngest) {
+                collectors[channel] = new MagnitudesCollector(getChannelMagnitudesId(channel), sliceLengthInFrames,
+                        expectedFrames / hopSizeInFrames + 1, storage);
+                channelSplit.connectTo(channel, new SignalPipeline<>(recorders[channel], slidingWindow, collectors[channel]));
+            } else {
+                counters[channel] = new WindowCounter(getChannelMagnitudesId(channel));
+                channelSplit.connectTo(channel, new SignalPipeline<>(recorders[channel], slidingWindow, counters[channel]));
             }
+        }
 
-            final SignalPump<AudioBuffer> pump = new SignalPump<>(source);
-            pump.add(channelSplit);
-            final Map<Object, Object> results = pump.pump();
+        final SignalPump<AudioBuffer> pump = new SignalPump<>(source);
+        pump.add(channelSplit);
+        pump.pump();
 
-            IntStream.range(0, audioFormat.getChannels())
-                    .parallel()
-                    .forEach((channel) -> {
-                        final Matrix samples = (Matrix) results.get(getChannelSamplesId(channel));
-                        final Matrix magnitudes = samplesToMagnitudes(samples);
-                        addChannel(new Channel(this, magnitudes, samples));
-                        LOG.log(Level.INFO, "Read channel " + channel + " of " + file + ". Original audioformat=" + originalFileFormat.getFormat() + ", magnitudes=" + magnitudes);
-                    });
-        }    }
+        final WindowedSamples[] windows = new WindowedSamples[channelCount];
+        final Matrix[] magnitudes = new Matrix[channelCount];
+        for (int channel = 0; channel < channelCount; channel++) {
+            final FloatArrayList samples = recorders[channel].getSamples();
+            if (streamingIngest) magnitudes[channel] = collectors[channel].getOutput();
+            final int rows = streamingIngest ? magnitudes[channel].getNumberOfRows() : counters[channel].getCount();
+            windows[channel] = new WindowedSamples(samples.getValues(), samples.size(), rows, sliceLengthInFrames, hopSizeInFrames);
+        }
+        sourceChannels = findSourceChannels(windows);
+
+        // channels are analyzed concurrently, but added in their original order
+        IntStream.range(0, channelCount)
+                .filter(channel -> getSourceChannel(channel) == channel)
+                .parallel()
+                .forEach((channel) -> {
+                    if (!streamingIngest) magnitudes[channel] = samplesToMagnitudes(windows[channel]);
+                    LOG.log(Level.INFO, "Read channel " + channel + " of " + file + (streamingIngest ? " (streaming)" : "")
+                            + ". Original audioformat=" + originalFileFormat.getFormat() + ", magnitudes=" + magnitudes[channel]);
+                });
+        for (int channel = 0; channel < channelCount; channel++) {
+            addChannel(new Channel(this, magnitudes[getSourceChannel(channel)], windows[channel]));
+        }
+    }
+
+    /**
+     * Finds channels that carry the same signal as a previous channel, e.g. in dual-mono files.
+     * Samples must be bit-identical or differ by no more than {@link #DUPLICATE_TOLERANCE} relative to their peak.
+     *
+     * @param samples samples of all channels
+     * @return index of the first channel with the same signal for each channel, or {@code null} if all channels differ
+     */
+    static int[] findSourceChannels(final WindowedSamples[] samples) {
+        final int[] sources = new int[samples.length];
+        boolean duplicates = false;
+        for (int channel = 0; channel < samples.length; channel++) {
+            sources[channel] = channel;
+            for (int previous = 0; previous < channel; previous++) {
+                if (sources[previous] == previous && isDuplicate(samples[previous], samples[channel])) {
+                    sources[channel] = previous;
+                    duplicates = true;
+                    LOG.log(Level.INFO, "Channel " + channel + " duplicates channel " + previous + ", separating it only once.");
+                    break;
+                }
+            }
+        }
+        return duplicates ? sources : null;
+    }
+
+    private static boolean isDuplicate(final WindowedSamples a, final WindowedSamples b) {
+        final int length = a.getLength();
+        if (length != b.getLength() || a.getNumberOfRows() != b.getNumberOfRows()) return false;
+        final float[] aSamples = a.getSamples();
+        final float[] bSamples = b.getSamples();
+        if (Arrays.equals(aSamples, 0, length, bSamples, 0, length)) return true;
+        float peak = 0;
+        for (int i = 0; i < length; i++) {
+            peak = Math.max(peak, Math.abs(aSamples[i]));
+        }
+        final float tolerance = peak * DUPLICATE_TOLERANCE;
+        for (int i = 0; i < length; i++) {
+            // true stereo signals usually fail early
+            if (Math.abs(aSamples[i] - bSamples[i]) > tolerance) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Index of the first channel that carries the same signal as the given channel.
+     * Masks and frames of such duplicate channels are only computed once.
+     *
+     * @param channel channel index
+     * @return index of the source channel, {@code channel} itself, if the signal is unique
+     */
+    public int getSourceChannel(final int channel) {
+        return sourceChannels == null ? channel : sourceChannels[channel];
+    }
 
     public Song(final AudioFormat audioFormat, final List<Channel> channels, final WindowFunction function) {
         this.audioFormat = audioFormat;
@@ -86,27 +229,75 @@ public class Song {
         this.windowFunction = function;
     }
 
+    /**
+     * Computes the magnitudes of all windows. Rows are split into blocks that are transformed
+     * in parallel. Windows are read directly from the samples' backing array and magnitudes are
+     * written directly into the result's backing array, so no garbage is produced per frame.
+     *
+     * @param samples windows
+     * @return magnitudes
+     */
     private Matrix samplesToMagnitudes(final Matrix samples) {
         //windowFunction = new WindowFunction.Hamming(sliceLengthInFrames);
-        final MutableMatrix magnitudes = new FullMatrix(samples.getNumberOfRows(), samples.getNumberOfColumns() / 2, new FloatBackingBuffer(true), false);
-        // create magnitudes matrix
-        final Transform fft = FFTFactory.getInstance().create(getSliceLengthInFrames());
-        for (int row = 0; row < samples.getNumberOfRows(); row++) {
-            final float[] audioSamples = samples.getRow(row);
-            //final float[] windowed = windowFunction.map(audioSamples);
-            final float[][] spectrum = fft.transform(audioSamples);
-            for (int column = 0; column < magnitudes.getNumberOfColumns(); column++) {
-                final float m = (float) Math.sqrt(spectrum[0][column] * spectrum[0][column] + spectrum[1][column] * spectrum[1][column]);
-                magnitudes.set(row, column, m);
-            }
-        }
+        final int rows = samples.getNumberOfRows();
+        final int sliceLength = samples.getNumberOfColumns();
+        final int columns = sliceLength / 2;
+        final DenseMatrix magnitudes = storage.createMatrix(rows, columns);
+        final MagnitudeKernel kernel = MagnitudeKernel.getInstance(sliceLength);
+        final int blockSize = getBlockSize(rows);
+        IntStream.range(0, (rows + blockSize - 1) / blockSize)
+                .parallel()
+                .forEach(
+                        (block) -> {
+                            final int end = Math.min(rows, (block + 1) * blockSize);
+                            final float[] window = samples instanceof RowMajorMatrix || samples instanceof WindowedSamples
+                                    ? null
+                                    : new float[sliceLength];
+                            // write directly into heap matrices, otherwise go through a row buffer
+                            final float[] dest = magnitudes instanceof RowMajorMatrix
+                                    ? ((RowMajorMatrix) magnitudes).getData()
+                                    : new float[columns];
+                            for (int row = block * blockSize; row < end; row++) {
+                                final int destOffset = magnitudes instanceof RowMajorMatrix
+                                        ? ((RowMajorMatrix) magnitudes).getOffset(row)
+                                        : 0;
+                                if (samples instanceof RowMajorMatrix) {
+                                    final RowMajorMatrix m = (RowMajorMatrix) samples;
+                                    kernel.magnitudes(m.getData(), m.getOffset(row), sliceLength, dest, destOffset);
+                                } else if (samples instanceof WindowedSamples) {
+                                    final WindowedSamples w = (WindowedSamples) samples;
+                                    final int start = row * w.getHopSize();
+                                    kernel.magnitudes(w.getSamples(), start, w.getLength() - start, dest, destOffset);
+                                } else {
+                                    for (int column = 0; column < sliceLength; column++) {
+                                        window[column] = samples.get(row, column);
+                                    }
+                                    kernel.magnitudes(window, 0, sliceLength, dest, destOffset);
+                                }
+                                if (!(magnitudes instanceof RowMajorMatrix)) {
+                                    magnitudes.setRow(row, dest, 0);
+                                }
+                            }
+                        }
+                );
         return magnitudes;
     }
 
+    /**
+     * Block size that leaves enough blocks for work-stealing to balance the load across all cores.
+     */
+    static int getBlockSize(final int rows) {
+        return Math.max(MIN_BLOCK_SIZE, rows / (ForkJoinPool.getCommonPoolParallelism() * 8));
+    }
+
     private Object getChannelSamplesId(final int channel) {
         return "Channel" + channel;
     }
 
+    private Object getChannelMagnitudesId(final int channel) {
+        return "Magnitudes" + channel;
+    }
+
     public AudioFormat getAudioFormat() {
         return audioFormat;
     }
@@ -115,26 +306,223 @@ public class Song {
         return channels;
     }
 
-    private synchronized void addChannel(final Channel channel) {
+    private void addChannel(final Channel channel) {
         channels.add(channel);
     }
 
+    /**
+     * Hop size in frames at 44.1kHz, as set by {@link #setHopSizeInFrames(int)}.
+     *
+     * @return hop size at 44.1kHz
+     * @see #getEffectiveHopSizeInFrames()
+     */
     public int getHopSizeInFrames() {
         return hopSizeInFrames;
     }
 
+    /**
+     * Slice length in frames at 44.1kHz, as set by {@link #setSliceLengthInFrames(int)}.
+     *
+     * @return slice length at 44.1kHz
+     * @see #getEffectiveSliceLengthInFrames()
+     */
     public int getSliceLengthInFrames() {
         return sliceLengthInFrames;
     }
 
+    /**
+     * Hop size in frames at this song's sample rate, derived from {@link #getHopSizeInFrames()}.
+     *
+     * @return hop size actually used for analysis and synthesis
+     * @see #scaleToSampleRate(int, float)
+     */
+    public int getEffectiveHopSizeInFrames() {
+        return scaleToSampleRate(hopSizeInFrames, audioFormat == null ? NOT_SPECIFIED : audioFormat.getSampleRate());
+    }
+
+    /**
+     * Slice length in frames at this song's sample rate, derived from {@link #getSliceLengthInFrames()}.
+     *
+     * @return slice length actually used for analysis and synthesis
+     * @see #scaleToSampleRate(int, float)
+     */
+    public int getEffectiveSliceLengthInFrames() {
+        return scaleToSampleRate(sliceLengthInFrames, audioFormat == null ? NOT_SPECIFIED : audioFormat.getSampleRate());
+    }
+
+    /**
+     * Sets the hop size in frames at 44.1kHz. When reading a file with a different sample rate,
+     * it is scaled to the same duration and rounded to the nearest power of 2 (see {@link #getEffectiveHopSizeInFrames()}).
+     *
+     * @param hopSizeInFrames hop size
+     */
     public void setHopSizeInFrames(final int hopSizeInFrames) {
         this.hopSizeInFrames = hopSizeInFrames;
     }
 
+    /**
+     * Sets the slice length in frames at 44.1kHz. When reading a file with a different sample rate,
+     * it is scaled to the same duration and rounded to the nearest power of 2 (see {@link #getEffectiveSliceLengthInFrames()}).
+     *
+     * @param sliceLengthInFrames slice length
+     */
     public void setSliceLengthInFrames(final int sliceLengthInFrames) {
         this.sliceLengthInFrames = sliceLengthInFrames;
     }
 
+    /**
+     * Scales a number of frames at {@link #REFERENCE_SAMPLE_RATE} to the given sample rate,
+     * rounded to the nearest power of 2, as required by the FFT.
+     *
+     * @param frames frames at 44.1kHz
+     * @param sampleRate sample rate
+     * @return frames at the given sample rate
+     */
+    static int scaleToSampleRate(final int frames, final float sampleRate) {
+        if (sampleRate == REFERENCE_SAMPLE_RATE || sampleRate == NOT_SPECIFIED || sampleRate <= 0) return frames;
+        final double scaled = frames * (double) sampleRate / REFERENCE_SAMPLE_RATE;
+        final long exponent = Math.max(0, Math.round(Math.log(scaled) / Math.log(2)));
+        return 1 << exponent;
+    }
+
+    public float getTargetSampleRate() {
+        return targetSampleRate;
+    }
+
+    /**
+     * By default, files are processed at their native sample rate. Setting a target sample rate
+     * makes {@link #read(File)} resample files with a different rate.
+     *
+     * @param targetSampleRate sample rate or {@link AudioSystem#NOT_SPECIFIED} to keep the native rate
+     */
+    public void setTargetSampleRate(final float targetSampleRate) {
+        this.targetSampleRate = targetSampleRate;
+    }
+
+    public int getTargetChannels() {
+        return targetChannels;
+    }
+
+    /**
+     * By default, files are processed with their native number of channels. Setting a target
+     * number of channels makes {@link #read(File)} up- or downmix files with a different number of channels.
+     *
+     * @param targetChannels number of channels or {@link AudioSystem#NOT_SPECIFIED} to keep the native channels
+     */
+    public void setTargetChannels(final int targetChannels) {
+        this.targetChannels = targetChannels;
+    }
+
+    public boolean isStreamingIngest() {
+        return streamingIngest;
+    }
+
+    /**
+     * If set to {@code true}, {@link #read(File)} computes magnitudes window by window while
+     * decoding. Otherwise, magnitudes are computed in parallel once the whole file has been decoded.
+     * Either way, only the raw samples are kept, not all overlapping windows.
+     * <p>
+     * Note that duplicate channels (e.g. in dual-mono files) are only detected once decoding
+     * has finished. With streaming ingest, their magnitudes are therefore still computed, and
+     * discarded afterwards. Without it, only unique channels are analyzed.
+     *
+     * @param streamingIngest streaming ingest
+     */
+    public void setStreamingIngest(final boolean streamingIngest) {
+        this.streamingIngest = streamingIngest;
+    }
+
+    public SpectrogramCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Sets a cache for magnitudes and samples. When set, {@link #read(File)} first looks
+     * up the file in the cache and skips decoding and analysis on a hit.
+     *
+     * @param cache cache or {@code null}
+     */
+    public void setCache(final SpectrogramCache cache) {
+        this.cache = cache;
+    }
+
+    public Synthesis getSynthesis() {
+        return synthesis;
+    }
+
+    /**
+     * Sets how frames are synthesized when writing. Songs created by {@link #separate(Function)}
+     * inherit this setting.
+     *
+     * @param synthesis synthesis, default is {@link Synthesis#GRIFFIN_LIM}
+     */
+    public void setSynthesis(final Synthesis synthesis) {
+        this.synthesis = synthesis;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Sets where magnitudes and masks of this song are stored. Songs created by {@link #separate(Function)}
+     * inherit this setting.
+     *
+     * @param storage storage, default is {@link Storage#HEAP}
+     */
+    public void setStorage(final Storage storage) {
+        this.storage = storage;
+    }
+
+    public boolean isQuantizedMasks() {
+        return quantizedMasks;
+    }
+
+    /**
+     * If set to {@code true}, {@link #separate(Function)} quantizes masks to 8 bits, which reduces their
+     * memory to a quarter (or less, for masks that are computed on access). Songs created by
+     * {@link #separate(Function)} inherit this setting.
+     *
+     * @param quantizedMasks quantize masks
+     * @see QuantizedMask
+     */
+    public void setQuantizedMasks(final boolean quantizedMasks) {
+        this.quantizedMasks = quantizedMasks;
+    }
+
+    public boolean isMidMasks() {
+        return midMasks;
+    }
+
+    /**
+     * If set to {@code true}, {@link #separate(Function)} applies the masking function only once,
+     * to a mid channel whose magnitudes are the average of all channels' magnitudes, and then uses
+     * that mask for every channel. Songs created by {@link #separate(Function)} inherit this setting.
+     *
+     * @param midMasks estimate masks on the mid channel
+     */
+    public void setMidMasks(final boolean midMasks) {
+        this.midMasks = midMasks;
+    }
+
+    public boolean isParallelChannels() {
+        return parallelChannels;
+    }
+
+    /**
+     * If set to {@code true} (the default), {@link #separate(Function)} applies the masking function
+     * to all channels concurrently. This multiplies the peak memory needed for self-similarity bands,
+     * medians and masks by the number of channels. Therefore channels are always processed one
+     * after another, if the {@link #setStorage(Storage) storage} is not {@link Storage#HEAP}, as
+     * those storages are chosen to save memory. Songs created by {@link #separate(Function)}
+     * inherit this setting.
+     *
+     * @param parallelChannels compute masks of different channels concurrently
+     */
+    public void setParallelChannels(final boolean parallelChannels) {
+        this.parallelChannels = parallelChannels;
+    }
+
     /**
      * Write this song asynchronously to a file in {@code WAV} format.
      *
@@ -156,7 +544,78 @@ public class Song {
      * @see #writeAsync(File)
      */
     public void write(final File file) throws IOException {
+        write(file, null);
+    }
+
+    /**
+     * Write this song to a file in {@code WAV} format and, optionally, the residual to another file.
+     * The residual is the difference between the original signal that was read and this song,
+     * i.e. the complementary part of a separation. It is computed frame by frame
+     * in the time domain, which is much cheaper than synthesizing the complementary song,
+     * but only approximates it.
+     * <p>
+     * Channels always keep the samples that were read, so for parts of parts, the residual would
+     * not be the complement within the parent, but contain the parent's sibling as well.
+     * Therefore residuals can only be written for songs that were read or separated once.
+     *
+     * @param file file to write to
+     * @param residualFile file to write the residual to or {@code null}
+     * @throws IOException if something goes wrong.
+     * @throws IllegalStateException if a residual is requested for a part of a part
+     */
+    public void write(final File file, final File residualFile) throws IOException {
+        if (residualFile != null && separationDepth > 1) {
+            throw new IllegalStateException("Residual of a part of a part is not supported, write both parts instead.");
+        }
         final int rows = channels.get(0).getMagnitudes().getNumberOfRows();
+        final List<WaveFileWriter> writers = new ArrayList<>();
+        try {
+            write(rows, createWriter(file, writers), residualFile == null ? null : createWriter(residualFile, writers));
+        } finally {
+            // removes unfinished output, if anything went wrong
+            for (final WaveFileWriter writer : writers) {
+                writer.close();
+            }
+        }
+    }
+
+    private void write(final int rows, final InterleavedChannelJoin channelJoin, final InterleavedChannelJoin residualChannelJoin) throws IOException {
+        final List<OLA> olaProcessors = channels.stream().map(Channel::getOlaProcessor).collect(Collectors.toList());
+        final List<OLA> residualOlaProcessors = new ArrayList<>();
+        if (residualChannelJoin != null) {
+            for (int channel = 0; channel < channels.size(); channel++) {
+                residualOlaProcessors.add(new OLA(getEffectiveSliceLengthInFrames(), getEffectiveHopSizeInFrames()));
+            }
+        }
+        // synthesize buffers for each row of each channel in parallel and push them into the OLA processors
+        // in row order. Each channel is overlap-added on its own thread, and joined and written on yet another one.
+        try (final OverlapAddPipeline pipeline = new OverlapAddPipeline(olaProcessors, channelJoin);
+             final OverlapAddPipeline residualPipeline = residualChannelJoin == null
+                     ? null : new OverlapAddPipeline(residualOlaProcessors, residualChannelJoin)) {
+            synthesize(rows, (row, frames) -> {
+                for (int channel = 0; channel < frames.length; channel++) {
+                    pipeline.process(channel, frames[channel]);
+                }
+                if (residualPipeline != null) {
+                    for (int channel = 0; channel < frames.length; channel++) {
+                        residualPipeline.process(channel, residual(channels.get(channel), row, frames[channel]));
+                    }
+                }
+            });
+            // flush
+            pipeline.flush();
+            if (residualPipeline != null) residualPipeline.flush();
+        }
+    }
+
+    /**
+     * Creates a channel join that scales its output and writes it to the given file.
+     *
+     * @param file file to write to
+     * @param writers list the new writer is added to, so that it can be closed
+     * @return channel join to connect the channels' OLA processors to
+     */
+    private InterleavedChannelJoin createWriter(final File file, final List<WaveFileWriter> writers) {
         final InterleavedChannelJoin channelJoin = new InterleavedChannelJoin(channels.size());
         final Mapping<AudioBuffer> scaler = new Mapping<>(buffer -> {
             final float[] scaledReal = buffer.getRealData().clone();
@@ -165,35 +624,100 @@ public class Song {
             Floats.multiply(scaledReal, factor);
             return new RealAudioBuffer(buffer.getFrameNumber(), scaledReal, buffer.getAudioFormat());
         });
-        channelJoin.connectTo(scaler).connectTo(new WaveFileWriter(file, channels.size()));
-
-        // connect olaProcessors for each channel to the channelJoin
-        //final Mapping<AudioBuffer> mapping = new Mapping<>(AudioBufferFunctions.createMapFunction(windowFunction));
-        channels.stream().forEach(channel -> channel.getOlaProcessor()
-                //.connectTo((SignalProcessor<AudioBuffer, AudioBuffer>) mapping)
-                .connectTo(channelJoin));
-
-        // synthesize buffers for each row of each channel and push them into the OLA processor
-        // and thus into the joiner and writer
-        for (int row=0; row<rows; row++) {
-            final int r = row;
-            channels.stream().forEach(channel -> {
-                try {
-                    channel.getOlaProcessor().process(channel.synthesize(r));
-                } catch (IOException e) {
-                    e.printStackTrace();
+        final WaveFileWriter writer = new WaveFileWriter(file, channels.size());
+        writers.add(writer);
+        channelJoin.connectTo(scaler).connectTo(writer);
+        return channelJoin;
+    }
+
+    /**
+     * Subtracts a synthesized frame from the corresponding original window.
+     * Both are overlap-added the same way, so the result is sample-aligned with the original.
+     *
+     * @param channel channel
+     * @param row row
+     * @param frame synthesized frame
+     * @return residual frame
+     */
+    private static AudioBuffer residual(final Channel channel, final int row, final AudioBuffer frame) {
+        final float[] synthesized = frame.getRealData();
+        final float[] residual = channel.getSamples().getRow(row);
+        final int length = Math.min(residual.length, synthesized.length);
+        for (int i = 0; i < length; i++) {
+            residual[i] -= synthesized[i];
+        }
+        return new RealAudioBuffer(frame.getFrameNumber(), residual, frame.getAudioFormat());
+    }
+
+    /**
+     * Synthesizes all rows of all channels in parallel (Griffin-Lim is by far the most expensive stage),
+     * and hands the resulting frames to the given consumer strictly in row order. Each channel of each row
+     * is a task of its own, so that channels are synthesized concurrently, too.
+     * At most {@link #getMaxPendingRows()} rows are synthesized ahead of the consumer, so that
+     * memory usage stays bounded, even if the consumer is slow.
+     *
+     * @param rows number of rows
+     * @param consumer consumer, called with one frame per channel, ordered like the channels
+     * @throws IOException if the consumer fails
+     */
+    private void synthesize(final int rows, final FramesConsumer consumer) throws IOException {
+        final int maxPendingRows = getMaxPendingRows();
+        final ArrayDeque<ForkJoinTask<AudioBuffer>[]> pending = new ArrayDeque<>(maxPendingRows);
+        int consumedRows = 0;
+        try {
+            for (int row = 0; row < rows; row++) {
+                if (pending.size() >= maxPendingRows) {
+                    consumer.accept(consumedRows++, join(pending.removeFirst()));
                 }
-            });
+                final int r = row;
+                @SuppressWarnings("unchecked")
+                final ForkJoinTask<AudioBuffer>[] tasks = new ForkJoinTask[channels.size()];
+                for (int channel = 0; channel < tasks.length; channel++) {
+                    final int sourceChannel = getSourceChannel(channel);
+                    final Channel c = channels.get(channel);
+                    // duplicate channels share the task, but get a copy of its frame (see join)
+                    tasks[channel] = sourceChannel == channel
+                            ? ForkJoinPool.commonPool().submit(() -> c.synthesize(r, synthesis))
+                            : tasks[sourceChannel];
+                }
+                pending.addLast(tasks);
+            }
+            while (!pending.isEmpty()) {
+                consumer.accept(consumedRows++, join(pending.removeFirst()));
+            }
+        } finally {
+            // don't waste cycles on frames nobody is going to consume
+            pending.forEach(tasks -> Arrays.stream(tasks).forEach(task -> task.cancel(false)));
         }
+    }
 
-        // flush
-        channels.stream().forEach(channel -> {
-            try {
-                channel.getOlaProcessor().flush();
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Joins the tasks of one row. Duplicate channels get a copy of their source channel's frame,
+     * because each channel's frame is overlap-added (and possibly subtracted from) independently.
+     *
+     * @param tasks one task per channel
+     * @return one frame per channel
+     */
+    private AudioBuffer[] join(final ForkJoinTask<AudioBuffer>[] tasks) {
+        final AudioBuffer[] frames = new AudioBuffer[tasks.length];
+        for (int channel = 0; channel < tasks.length; channel++) {
+            final int sourceChannel = getSourceChannel(channel);
+            if (sourceChannel == channel) {
+                frames[channel] = tasks[channel].join();
+            } else {
+                final AudioBuffer frame = frames[sourceChannel];
+                frames[channel] = new RealAudioBuffer(frame.getFrameNumber(), frame.getRealData().clone(), frame.getAudioFormat());
             }
-        });
+        }
+        return frames;
+    }
+
+    /**
+     * Size of the reorder buffer used during synthesis, i.e. the max number of rows
+     * that are synthesized, but not yet overlap-added.
+     */
+    private static int getMaxPendingRows() {
+        return Math.max(2, ForkJoinPool.getCommonPoolParallelism() * 4);
     }
 
     /**
@@ -204,7 +728,76 @@ public class Song {
      * @return two songs
      */
     public Song[] separate(final Function<Channel, Matrix> maskingFunction) {
-        return separate(channels.stream().map(maskingFunction).collect(Collectors.toList()));
+        if (midMasks && getUniqueChannels().size() > 1) {
+            final Matrix mask = maskingFunction.apply(getMidChannel());
+            final Matrix midMask = quantizedMasks ? QuantizedMask.quantize(mask) : mask;
+            return separate(channels.stream().map(channel -> midMask).collect(Collectors.toList()));
+        }
+        // masks of different channels are computed concurrently, if affordable. Quantize each mask right away,
+        // so that at most one full precision mask per concurrently processed channel is alive at a time
+        final Matrix[] masks = new Matrix[channels.size()];
+        final IntStream uniqueChannels = IntStream.range(0, channels.size())
+                .filter(channel -> getSourceChannel(channel) == channel);
+        (parallelChannels && storage == Storage.HEAP ? uniqueChannels.parallel() : uniqueChannels)
+                .forEach(
+                        (channel) -> {
+                            final Matrix mask = maskingFunction.apply(channels.get(channel));
+                            masks[channel] = quantizedMasks ? QuantizedMask.quantize(mask) : mask;
+                        }
+                );
+        // duplicate channels share the mask
+        for (int channel = 0; channel < masks.length; channel++) {
+            masks[channel] = masks[getSourceChannel(channel)];
+        }
+        return separate(Arrays.asList(masks));
+    }
+
+    private List<Channel> getUniqueChannels() {
+        return IntStream.range(0, channels.size())
+                .filter(channel -> getSourceChannel(channel) == channel)
+                .mapToObj(channels::get)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Lazily creates a channel whose magnitudes are the average of all (unique) channels' magnitudes.
+     * It shares the samples of the first channel, as they are never used for masking.
+     * Synchronized, because separations of the same song may run concurrently.
+     *
+     * @return mid channel
+     */
+    private synchronized Channel getMidChannel() {
+        if (midChannel != null) return midChannel;
+        final List<Channel> uniqueChannels = getUniqueChannels();
+        final float scale = 1f / uniqueChannels.size();
+        final int rows = uniqueChannels.get(0).getMagnitudes().getNumberOfRows();
+        final int columns = uniqueChannels.get(0).getMagnitudes().getNumberOfColumns();
+        final DenseMatrix magnitudes = storage.createMatrix(rows, columns);
+        final int blockSize = getBlockSize(rows);
+        IntStream.range(0, (rows + blockSize - 1) / blockSize)
+                .parallel()
+                .forEach(
+                        (block) -> {
+                            final int end = Math.min(rows, (block + 1) * blockSize);
+                            final float[] mid = new float[columns];
+                            for (int row = block * blockSize; row < end; row++) {
+                                Arrays.fill(mid, 0f);
+                                for (final Channel channel : uniqueChannels) {
+                                    final float[] channelMagnitudes = channel.getMaskedMagnitudes(row);
+                                    for (int column = 0; column < columns; column++) {
+                                        mid[column] += channelMagnitudes[column];
+                                    }
+                                }
+                                for (int column = 0; column < columns; column++) {
+                                    mid[column] *= scale;
+                                }
+                                magnitudes.setRow(row, mid, 0);
+                            }
+                        }
+                );
+        // masking functions only look at magnitudes, so don't keep another copy of the samples
+        midChannel = new Channel(this, magnitudes, uniqueChannels.get(0).getSamples());
+        return midChannel;
     }
 
     private Song[] separate(final List<Matrix> masks) {
@@ -219,47 +812,153 @@ public class Song {
             bChannels.add(separateChannels[1]);
         }
         return new Song[] {
-                new Song(audioFormat, aChannels, windowFunction),
-                new Song(audioFormat, bChannels, windowFunction),
+                createPart(aChannels),
+                createPart(bChannels),
         };
     }
 
-    private static class SamplesCollector extends AbstractSignalProcessor<AudioBuffer, Matrix> {
+    /**
+     * Creates a song made of the given channels that shares this song's settings.
+     */
+    private Song createPart(final List<Channel> channels) {
+        final Song part = new Song(audioFormat, channels, windowFunction);
+        part.setHopSizeInFrames(hopSizeInFrames);
+        part.setSliceLengthInFrames(sliceLengthInFrames);
+        part.setSynthesis(synthesis);
+        part.setStorage(storage);
+        part.setQuantizedMasks(quantizedMasks);
+        part.setMidMasks(midMasks);
+        part.setParallelChannels(parallelChannels);
+        part.sourceChannels = sourceChannels;
+        part.separationDepth = separationDepth + 1;
+        return part;
+    }
+
+    /**
+     * Consumes the synthesized frames of one row.
+     */
+    @FunctionalInterface
+    private interface FramesConsumer {
+        void accept(int row, AudioBuffer[] frames) throws IOException;
+    }
+
+    /**
+     * Counts the windows it sees, without keeping them.
+     */
+    private static class WindowCounter extends AbstractSignalProcessor<AudioBuffer, Matrix> {
 
+        private int count;
+
+        public WindowCounter(final Object id) {
+            super(id);
+        }
+
+        @Override
+        protected Matrix processNext(final AudioBuffer buffer) throws IOException {
+            count++;
+            return lastOut;
+        }
+
+        public int getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Pass-through processor that records all samples it sees.
+     */
+    private static class SamplesRecorder extends AbstractSignalProcessor<AudioBuffer, AudioBuffer> {
+
+        private final FloatArrayList samples;
+
+        public SamplesRecorder(final Object id, final int expectedLength) {
+            super(id);
+            this.samples = new FloatArrayList(expectedLength);
+        }
+
+        @Override
+        protected AudioBuffer processNext(final AudioBuffer buffer) throws IOException {
+            final float[] data = buffer.getRealData();
+            samples.add(data, 0, data.length);
+            return buffer;
+        }
+
+        public FloatArrayList getSamples() {
+            return samples;
+        }
+    }
+
+    /**
+     * Turns incoming windows into magnitudes right away and only keeps those.
+     * Windows are gathered into small fixed-size blocks, which are transformed in parallel.
+     */
+    private static class MagnitudesCollector extends AbstractSignalProcessor<AudioBuffer, Matrix> {
+
+        private static final int BLOCK_ROWS = 256;
+        private final int sliceLength;
         private final int columns;
-        private List<float[]> rows = new ArrayList<>();
+        private final MagnitudeKernel kernel;
+        private final Storage storage;
+        private final FloatStore magnitudes;
+        private final float[][] block = new float[BLOCK_ROWS][];
+        private final float[] blockMagnitudes;
+        private int blockRows;
+        private int rows;
 
-        public SamplesCollector(final Object id, final int columns) {
+        public MagnitudesCollector(final Object id, final int sliceLength, final int expectedRows, final Storage storage) {
             super(id);
-            this.columns = columns;
+            this.sliceLength = sliceLength;
+            this.columns = sliceLength / 2;
+            this.kernel = MagnitudeKernel.getInstance(sliceLength);
+            this.storage = storage;
+            // magnitudes go straight to the store, so that only one block is held as floats
+            this.magnitudes = storage.createStore((long) expectedRows * columns);
+            this.blockMagnitudes = new float[BLOCK_ROWS * columns];
         }
 
         @Override
         protected Matrix processNext(final AudioBuffer buffer) throws IOException {
-            rows.add(buffer.getRealData().clone());
+            if (block[blockRows] == null) block[blockRows] = new float[sliceLength];
+            final float[] data = buffer.getRealData();
+            final int length = Math.min(sliceLength, data.length);
+            System.arraycopy(data, 0, block[blockRows], 0, length);
+            Arrays.fill(block[blockRows], length, sliceLength, 0f);
+            blockRows++;
+            if (blockRows == BLOCK_ROWS) transformBlock();
             return lastOut;
         }
 
+        private void transformBlock() {
+            IntStream.range(0, blockRows)
+                    .parallel()
+                    .forEach(
+                            (row) -> kernel.magnitudes(block[row], 0, sliceLength, blockMagnitudes, row * columns)
+                    );
+            final long position = (long) rows * columns;
+            magnitudes.ensureCapacity(position + blockRows * columns);
+            magnitudes.set(position, blockMagnitudes, 0, blockRows * columns);
+            rows += blockRows;
+            blockRows = 0;
+        }
+
         @Override
         public void flush() throws IOException {
-            if (!rows.isEmpty()) {
-                lastOut = new FullMatrix(rows.size(), columns, new FloatBackingBuffer(true), false);
-                for (int row = 0; row < rows.size(); row++) {
-                    ((MutableMatrix) lastOut).setRow(row, rows.get(row));
-                }
-                rows.clear();
-            }
+            if (blockRows > 0) transformBlock();
+            lastOut = storage.createMatrix(rows, columns, magnitudes);
             super.flush();
         }
     }
 
     /**
-     * Attempts to convert the input stream into signed PCM, 44.1kHz, Stereo, 16-bit/sample format.
+     * Attempts to convert the input stream into signed PCM, 16-bit/sample format.
+     * Sample rate and number of channels are only converted, if a target is specified.
      *
      * @param in input stream
+     * @param targetSampleRate sample rate or {@link AudioSystem#NOT_SPECIFIED} to keep the native rate
+     * @param targetChannels number of channels or {@link AudioSystem#NOT_SPECIFIED} to keep the native channels
      * @return specially transformed stream
      */
-    private static AudioInputStream get44_1kHzStereo16BitStream(final AudioInputStream in) {
+    private static AudioInputStream get16BitStream(final AudioInputStream in, final float targetSampleRate, final int targetChannels) {
         AudioInputStream stream = in;
         try {
             AudioFormat streamFormat = stream.getFormat();
@@ -267,16 +966,16 @@ public class Song {
             if (!PCM_SIGNED.equals(streamFormat.getEncoding())) {
                 stream = AudioSystem.getAudioInputStream(PCM_SIGNED, stream);
             }
-            // ensure 44100 Hz
+            // resample, if asked to
             streamFormat = stream.getFormat();
-            if (streamFormat.getSampleRate() != 44100f && streamFormat.getSampleRate() != NOT_SPECIFIED) {
+            if (targetSampleRate != NOT_SPECIFIED && streamFormat.getSampleRate() != targetSampleRate && streamFormat.getSampleRate() != NOT_SPECIFIED) {
                 stream = AudioSystem.getAudioInputStream(new AudioFormat(
                         streamFormat.getEncoding(),
-                        44100,
+                        targetSampleRate,
                         streamFormat.getSampleSizeInBits(),
                         streamFormat.getChannels(),
                         streamFormat.getFrameSize(),
-                        44100,
+                        targetSampleRate,
                         streamFormat.isBigEndian(),
                         streamFormat.properties()
                 ), stream);
@@ -295,15 +994,15 @@ public class Song {
                         streamFormat.properties()
                 ), stream);
             }
-            // ensure stereo
+            // up- or downmix, if asked to
             streamFormat = stream.getFormat();
-            if (streamFormat.getChannels() != 2 && streamFormat.getSampleRate() != NOT_SPECIFIED) {
+            if (targetChannels != NOT_SPECIFIED && streamFormat.getChannels() != targetChannels && streamFormat.getSampleRate() != NOT_SPECIFIED) {
                 stream = AudioSystem.getAudioInputStream(new AudioFormat(
                         streamFormat.getEncoding(),
                         streamFormat.getSampleRate(),
                         streamFormat.getSampleSizeInBits(),
-                        2,
-                        4,
+                        targetChannels,
+                        targetChannels * streamFormat.getSampleSizeInBits() / 8,
                         streamFormat.getFrameRate(),
                         streamFormat.isBigEndian(),
                         streamFormat.properties()
@@ -0,0 +1,379 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import com.tagtraum.jipes.math.Matrix;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent cache for the per-channel magnitudes and raw samples of a {@link Song}.
+ * Entries are keyed by a hash of the audio file's content plus the STFT parameters,
+ * the sample rate and whether magnitudes were kept at {@link Storage#isFullPrecision() full precision}.
+ * When the total size of the cache exceeds its limit,
+ * least recently used entries are evicted.
+ * <p>
+ * Each entry is a single file: a fixed little-endian header followed by, for each
+ * channel, the magnitudes (row by row) and the raw samples, all as little-endian
+ * 32-bit floats. All arrays are 4-byte aligned, so they can be read via memory mapping.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ * @see Song#setCache(SpectrogramCache)
+ */
+public class SpectrogramCache {
+
+    private static final Logger LOG = Logger.getLogger(SpectrogramCache.class.getName());
+    private static final int MAGIC = 0x53504543; // "SPEC"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final String SUFFIX = ".spec";
+    private static final int MAX_FLOATS_PER_MAPPING = 1 << 26;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final Path directory;
+    private final long maxSize;
+
+    /**
+     * Creates a cache.
+     *
+     * @param directory cache directory, created if it does not exist
+     * @param maxSize max total size of all entries in bytes
+     */
+    public SpectrogramCache(final File directory, final long maxSize) {
+        this.directory = directory.toPath();
+        this.maxSize = maxSize;
+    }
+
+    public File getDirectory() {
+        return directory.toFile();
+    }
+
+    /**
+     * Per-user cache directory, i.e. {@code ~/Library/Caches/separator} on macOS,
+     * {@code %LOCALAPPDATA%\separator\cache} on Windows and {@code $XDG_CACHE_HOME/separator}
+     * (defaulting to {@code ~/.cache/separator}) elsewhere.
+     *
+     * @return default cache directory
+     */
+    public static File getDefaultDirectory() {
+        final String os = System.getProperty("os.name").toLowerCase();
+        final String home = System.getProperty("user.home");
+        if (os.contains("mac")) {
+            return new File(home, "Library/Caches/separator");
+        }
+        final String localAppData = System.getenv("LOCALAPPDATA");
+        if (os.contains("windows") && localAppData != null) {
+            return new File(localAppData, "separator\\cache");
+        }
+        final String xdgCacheHome = System.getenv("XDG_CACHE_HOME");
+        return new File(xdgCacheHome != null && !xdgCacheHome.isEmpty() ? xdgCacheHome : home + "/.cache", "separator");
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Creates a key for the given file's content and analysis parameters.
+     *
+     * @param file audio file
+     * @param hopSizeInFrames hop size
+     * @param sliceLengthInFrames window size
+     * @param audioFormat format the file is decoded to
+     * @param storage storage of the magnitudes, lossy magnitudes are cached separately
+     * @return key
+     * @throws IOException if the file cannot be read
+     */
+    public String createKey(final File file, final int hopSizeInFrames, final int sliceLengthInFrames,
+                            final AudioFormat audioFormat, final Storage storage) throws IOException {
+        final MessageDigest digest = createDigest();
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        final ByteBuffer parameters = ByteBuffer.allocate(28);
+        parameters.putInt(VERSION);
+        parameters.putInt(hopSizeInFrames);
+        parameters.putInt(sliceLengthInFrames);
+        parameters.putFloat(audioFormat.getSampleRate());
+        parameters.putInt(audioFormat.getChannels());
+        parameters.putInt(audioFormat.getSampleSizeInBits());
+        parameters.putInt(storage.isFullPrecision() ? 1 : 0);
+        digest.update(parameters.array());
+        final StringBuilder sb = new StringBuilder();
+        for (final byte b : digest.digest()) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Loads the channels stored under the given key.
+     *
+     * @param key key
+     * @param song song the channels will belong to
+     * @return channels or {@code null}, if there is no (valid) entry for the key
+     */
+    public List<Channel> load(final String key, final Song song) {
+        final Path entry = directory.resolve(key + SUFFIX);
+        if (!Files.isRegularFile(entry)) return null;
+        try (final FileChannel channel = FileChannel.open(entry, StandardOpenOption.READ)) {
+            final MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) throw new IOException("Not a valid cache entry");
+            final float sampleRate = header.getFloat();
+            final int sampleSizeInBits = header.getInt();
+            final int channelCount = header.getInt();
+            final boolean bigEndian = header.getInt() != 0;
+            final int hopSizeInFrames = header.getInt();
+            final int sliceLengthInFrames = header.getInt();
+            final int rows = header.getInt();
+            final int columns = header.getInt();
+            final int samplesLength = header.getInt();
+            final boolean fullPrecision = header.getInt() != 0;
+            if (fullPrecision != song.getStorage().isFullPrecision()
+                    || hopSizeInFrames != song.getEffectiveHopSizeInFrames() || sliceLengthInFrames != song.getEffectiveSliceLengthInFrames()
+                    || sampleRate != song.getAudioFormat().getSampleRate() || channelCount != song.getAudioFormat().getChannels()
+                    || sampleSizeInBits != song.getAudioFormat().getSampleSizeInBits() || bigEndian != song.getAudioFormat().isBigEndian()) {
+                throw new IOException("Cache entry parameters do not match");
+            }
+            final long expectedSize = HEADER_SIZE + 4L * channelCount * ((long) rows * columns + samplesLength);
+            if (channel.size() != expectedSize) throw new IOException("Truncated cache entry: " + channel.size() + " != " + expectedSize);
+
+            final List<Channel> channels = new ArrayList<>();
+            long position = HEADER_SIZE;
+            for (int c = 0; c < channelCount; c++) {
+                final DenseMatrix magnitudes = song.getStorage().createMatrix(rows, columns);
+                position = read(channel, position, magnitudes);
+                final float[] samples = new float[samplesLength];
+                position = read(channel, position, samples, samplesLength);
+                channels.add(new Channel(song, magnitudes,
+                        new WindowedSamples(samples, samplesLength, rows, sliceLengthInFrames, hopSizeInFrames)));
+            }
+            // mark as recently used
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return channels;
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Failed to load cache entry " + entry + ": " + e, e);
+            delete(entry);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the channels of the given song under the given key and evicts
+     * old entries, if the cache has grown too large.
+     *
+     * @param key key
+     * @param song song
+     * @throws IOException if the entry cannot be written
+     */
+    public void store(final String key, final Song song) throws IOException {
+        final List<Channel> channels = song.getChannels();
+        if (channels.isEmpty()) return;
+        createDirectory();
+        final AudioFormat audioFormat = song.getAudioFormat();
+        final Matrix firstMagnitudes = channels.get(0).getMagnitudes();
+        final int rows = firstMagnitudes.getNumberOfRows();
+        final int columns = firstMagnitudes.getNumberOfColumns();
+        final List<WindowedSamples> samples = new ArrayList<>();
+        for (final Channel channel : channels) {
+            samples.add(channel.getSamples());
+        }
+        final int samplesLength = samples.get(0).getLength();
+
+        final Path temp = Files.createTempFile(directory, key, ".tmp");
+        try {
+            try (final FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putInt(MAGIC);
+                buffer.putInt(VERSION);
+                buffer.putFloat(audioFormat.getSampleRate());
+                buffer.putInt(audioFormat.getSampleSizeInBits());
+                buffer.putInt(channels.size());
+                buffer.putInt(audioFormat.isBigEndian() ? 1 : 0);
+                buffer.putInt(song.getEffectiveHopSizeInFrames());
+                buffer.putInt(song.getEffectiveSliceLengthInFrames());
+                buffer.putInt(rows);
+                buffer.putInt(columns);
+                buffer.putInt(samplesLength);
+                buffer.putInt(song.getStorage().isFullPrecision() ? 1 : 0);
+                while (buffer.position() < HEADER_SIZE) buffer.put((byte) 0);
+
+                final float[] row = new float[columns];
+                for (int c = 0; c < channels.size(); c++) {
+                    final Matrix magnitudes = channels.get(c).getMagnitudes();
+                    for (int r = 0; r < rows; r++) {
+                        if (magnitudes instanceof DenseMatrix) {
+                            ((DenseMatrix) magnitudes).copyRow(r, row, 0);
+                        } else {
+                            System.arraycopy(magnitudes.getRow(r), 0, row, 0, columns);
+                        }
+                        write(out, buffer, row, columns);
+                    }
+                    write(out, buffer, samples.get(c).getSamples(), samplesLength);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) out.write(buffer);
+            }
+            Files.move(temp, directory.resolve(key + SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        evict();
+    }
+
+    /**
+     * Creates the cache directory, if it does not exist yet. On POSIX file systems,
+     * only the owner may access it, so that other users can neither read nor plant entries.
+     */
+    private void createDirectory() throws IOException {
+        if (Files.isDirectory(directory)) return;
+        final Path parent = directory.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        try {
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                Files.createDirectory(directory, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            } else {
+                Files.createDirectory(directory);
+            }
+        } catch (FileAlreadyExistsException e) {
+            // created concurrently
+        }
+    }
+
+    /**
+     * Deletes least recently used entries until the cache is no larger than {@link #getMaxSize()}.
+     *
+     * @throws IOException if the cache directory cannot be read
+     */
+    public synchronized void evict() throws IOException {
+        if (!Files.isDirectory(directory)) return;
+        final List<Path> entries = new ArrayList<>();
+        try (final DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            stream.forEach(entries::add);
+        }
+        long size = 0;
+        final long[] lastModified = new long[entries.size()];
+        final long[] sizes = new long[entries.size()];
+        final Integer[] order = new Integer[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            final BasicFileAttributes attributes = Files.readAttributes(entries.get(i), BasicFileAttributes.class);
+            lastModified[i] = attributes.lastModifiedTime().toMillis();
+            sizes[i] = attributes.size();
+            size += sizes[i];
+            order[i] = i;
+        }
+        if (size <= maxSize) return;
+        Arrays.sort(order, Comparator.comparingLong(i -> lastModified[i]));
+        for (int i = 0; i < order.length && size > maxSize; i++) {
+            LOG.log(Level.INFO, "Evicting cache entry " + entries.get(order[i]));
+            if (delete(entries.get(order[i]))) size -= sizes[order[i]];
+        }
+    }
+
+    private static long read(final FileChannel channel, final long position, final DenseMatrix dest) throws IOException {
+        final int rows = dest.getNumberOfRows();
+        final int columns = dest.getNumberOfColumns();
+        if (dest instanceof RowMajorMatrix) {
+            return read(channel, position, ((RowMajorMatrix) dest).getData(), rows * columns);
+        }
+        // copy row by row, mapping as many rows at once as possible
+        final float[] row = new float[columns];
+        final int rowsPerMapping = Math.max(1, MAX_FLOATS_PER_MAPPING / Math.max(1, columns));
+        long p = position;
+        for (int first = 0; first < rows; first += rowsPerMapping) {
+            final int count = Math.min(rowsPerMapping, rows - first);
+            final FloatBuffer floats = channel.map(FileChannel.MapMode.READ_ONLY, p, 4L * count * columns)
+                    .order(ByteOrder.LITTLE_ENDIAN)
+                    .asFloatBuffer();
+            for (int r = first; r < first + count; r++) {
+                floats.get(row);
+                dest.setRow(r, row, 0);
+            }
+            p += 4L * count * columns;
+        }
+        return p;
+    }
+
+    private static long read(final FileChannel channel, final long position, final float[] dest, final int length) throws IOException {
+        long p = position;
+        for (int offset = 0; offset < length; offset += MAX_FLOATS_PER_MAPPING) {
+            final int count = Math.min(MAX_FLOATS_PER_MAPPING, length - offset);
+            final FloatBuffer floats = channel.map(FileChannel.MapMode.READ_ONLY, p, 4L * count)
+                    .order(ByteOrder.LITTLE_ENDIAN)
+                    .asFloatBuffer();
+            floats.get(dest, offset, count);
+            p += 4L * count;
+        }
+        return p;
+    }
+
+    private static void write(final FileChannel out, final ByteBuffer buffer, final float[] values, final int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            if (buffer.remaining() < 4) {
+                buffer.flip();
+                while (buffer.hasRemaining()) out.write(buffer);
+                buffer.clear();
+            }
+            final int count = Math.min(length - offset, buffer.remaining() / 4);
+            buffer.asFloatBuffer().put(values, offset, count);
+            buffer.position(buffer.position() + 4 * count);
+            offset += count;
+        }
+    }
+
+    private static boolean delete(final Path path) {
+        try {
+            return Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to delete " + path + ": " + e, e);
+            return false;
+        }
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM must support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SpectrogramCache{" +
+                "directory=" + directory +
+                ", maxSize=" + maxSize +
+                '}';
+    }
+}
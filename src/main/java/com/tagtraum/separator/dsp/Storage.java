@@ -0,0 +1,98 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+/**
+ * Where to keep large, long-lived matrices like magnitudes and masks.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ * @see Song#setStorage(Storage)
+ */
+public enum Storage {
+
+    /**
+     * On the heap, as {@link RowMajorMatrix} backed by a {@link HeapFloatStore}. Fastest, but limited to {@code 2^31} cells and the max heap size.
+     */
+    HEAP {
+        @Override
+        FloatStore createStore(final long size) {
+            return new HeapFloatStore(size);
+        }
+    },
+
+    /**
+     * In memory-mapped temporary files, addressed by {@code long} offsets.
+     * Suitable for recordings that are many hours long.
+     *
+     * @see MappedFloatStore
+     */
+    MAPPED {
+        @Override
+        FloatStore createStore(final long size) {
+            return new MappedFloatStore(size);
+        }
+    },
+
+    /**
+     * On the heap as half-precision floats, i.e. in half the memory of {@link #HEAP},
+     * at the expense of precision and some conversion overhead.
+     *
+     * @see HalfFloatStore
+     */
+    HALF {
+        @Override
+        FloatStore createStore(final long size) {
+            return new HalfFloatStore(size);
+        }
+
+        @Override
+        public boolean isFullPrecision() {
+            return false;
+        }
+    };
+
+    /**
+     * @return {@code true}, if values are kept as 32-bit floats
+     */
+    public boolean isFullPrecision() {
+        return true;
+    }
+
+    /**
+     * Creates a zero-filled matrix.
+     *
+     * @param rows rows
+     * @param columns columns
+     * @return new matrix
+     */
+    public DenseMatrix createMatrix(final int rows, final int columns) {
+        return createMatrix(rows, columns, createStore((long) rows * columns));
+    }
+
+    /**
+     * Creates a matrix backed by the given store, which must have been created by {@link #createStore(long)}.
+     * Stores with a {@link FloatStore#getArray() backing array} are wrapped in a {@link RowMajorMatrix}.
+     *
+     * @param rows rows
+     * @param columns columns
+     * @param store store with at least {@code rows * columns} values
+     * @return new matrix
+     */
+    public DenseMatrix createMatrix(final int rows, final int columns, final FloatStore store) {
+        final float[] array = store.getArray();
+        return array != null ? new RowMajorMatrix(rows, columns, array) : new StoredMatrix(rows, columns, store);
+    }
+
+    /**
+     * Creates a zero-filled store, e.g. for matrices whose final number of rows is not known in advance.
+     *
+     * @param size initial number of values
+     * @return new store
+     */
+    abstract FloatStore createStore(final long size);
+
+}
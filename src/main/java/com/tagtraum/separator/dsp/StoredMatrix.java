@@ -0,0 +1,95 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import com.tagtraum.jipes.math.AbstractMatrix;
+
+/**
+ * Dense row-major matrix backed by a {@link FloatStore}. Values are addressed by {@code long}
+ * offsets, so the matrix may have more than {@code 2^31} cells.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ * @see Storage
+ */
+public class StoredMatrix extends AbstractMatrix implements DenseMatrix {
+
+    private final int rows;
+    private final int columns;
+    private final FloatStore store;
+
+    /**
+     * @param rows rows
+     * @param columns columns
+     * @param store store with at least {@code rows * columns} values
+     */
+    public StoredMatrix(final int rows, final int columns, final FloatStore store) {
+        if (store.size() < (long) rows * columns) throw new IllegalArgumentException("Store is too small for " + rows + "x" + columns + " matrix: " + store.size());
+        this.rows = rows;
+        this.columns = columns;
+        this.store = store;
+    }
+
+    public FloatStore getStore() {
+        return store;
+    }
+
+    @Override
+    public float get(final int row, final int column) {
+        return store.get((long) row * columns + column);
+    }
+
+    @Override
+    public void set(final int row, final int column, final float value) {
+        store.set((long) row * columns + column, value);
+    }
+
+    @Override
+    public float[] getRow(final int row) {
+        final float[] values = new float[columns];
+        copyRow(row, values, 0);
+        return values;
+    }
+
+    @Override
+    public void copyRow(final int row, final float[] dest, final int offset) {
+        store.get((long) row * columns, dest, offset, columns);
+    }
+
+    @Override
+    public void setRow(final int row, final float[] values, final int offset) {
+        store.set((long) row * columns, values, offset, columns);
+    }
+
+    @Override
+    public int getNumberOfRows() {
+        return rows;
+    }
+
+    @Override
+    public int getNumberOfColumns() {
+        return columns;
+    }
+
+    @Override
+    public boolean isZeroPadded() {
+        return false;
+    }
+
+    @Override
+    protected float get(final int index) {
+        return store.get(index);
+    }
+
+    @Override
+    public String toString() {
+        return "StoredMatrix{" +
+                "rows=" + rows +
+                ", columns=" + columns +
+                ", store=" + store +
+                '}';
+    }
+}
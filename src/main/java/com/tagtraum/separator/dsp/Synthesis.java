@@ -0,0 +1,30 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+/**
+ * Ways to turn (masked) magnitudes back into audio frames.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ * @see Song#setSynthesis(Synthesis)
+ * @see Channel#synthesize(int, Synthesis)
+ */
+public enum Synthesis {
+
+    /**
+     * Estimates the phase with a few Griffin-Lim iterations, starting from the original frame.
+     */
+    GRIFFIN_LIM,
+
+    /**
+     * Scales the original frame's complex spectrum by the ratio of new to original magnitude,
+     * i.e. re-uses the original phase, and applies an inverse FFT.
+     * Much faster than {@link #GRIFFIN_LIM}.
+     */
+    ORIGINAL_PHASE
+
+}
@@ -10,36 +10,49 @@ import com.tagtraum.jipes.SignalProcessor;
 import com.tagtraum.jipes.SignalProcessorSupport;
 import com.tagtraum.jipes.audio.AudioBuffer;
 
-import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
-import java.io.*;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static java.nio.file.StandardOpenOption.*;
+
 /**
  * WaveFileWriter.
+ * <p>
+ * Samples are converted to 16 bit little endian PCM in a reusable buffer and written straight to the
+ * target file, after a placeholder for the header. The file is only opened once the first samples arrive.
+ * On {@link #flush()}, the header, which contains the final sizes, is written over the placeholder.
+ * If the writer is {@link #close() closed} without being flushed, e.g. because synthesis failed,
+ * the incomplete file is deleted.
  *
  * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
  */
-public class WaveFileWriter implements SignalProcessor<AudioBuffer, AudioBuffer> {
+public class WaveFileWriter implements SignalProcessor<AudioBuffer, AudioBuffer>, Closeable {
 
     private static final Logger LOG = Logger.getLogger(WaveFileWriter.class.getName());
+    private static final int HEADER_LENGTH = 44;
+    private static final short WAVE_FORMAT_PCM = 1;
+    private static final int BYTES_PER_SAMPLE = 2;
 
     private final SignalProcessorSupport<AudioBuffer> support = new SignalProcessorSupport<>();
     private final File file;
-    private final File tempFile;
-    private final DataOutputStream out;
     private final int channels;
+    private FileChannel out;
+    private boolean complete;
     private AudioFormat audioFormat;
+    private ByteBuffer buffer;
+    private long dataLength;
 
-    public WaveFileWriter(final File file, final int channels) throws IOException {
+    public WaveFileWriter(final File file, final int channels) {
         this.channels = channels;
         this.file = file;
-        this.tempFile = File.createTempFile("wave", ".raw");
-        this.tempFile.deleteOnExit();
-        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
     }
 
     @Override
@@ -47,41 +60,96 @@ public class WaveFileWriter implements SignalProcessor<AudioBuffer, AudioBuffer>
         final float[] data = audioBuffer.getRealData();
         if (audioFormat == null) {
             audioFormat = audioBuffer.getAudioFormat();
-        }
-        if (audioFormat.isBigEndian()) {
-            for (final float s : data) {
-                final short v = (short)Math.max(Short.MIN_VALUE+5, Math.min(s, Short.MAX_VALUE-5));
-                out.write((v >>> 8) & 0xFF);
-                out.write((v >>> 0) & 0xFF);
-            }
-        } else {
-            for (final float s : data) {
-                final short v = (short)Math.max(Short.MIN_VALUE+5, Math.min(s, Short.MAX_VALUE-5));
-                out.write((v >>> 0) & 0xFF);
-                out.write((v >>> 8) & 0xFF);
+            if (audioFormat.getSampleSizeInBits() != 16) {
+                throw new IOException("Unsupported sample size: " + audioFormat.getSampleSizeInBits() + " bits");
             }
         }
+        if (out == null) open();
+        final int length = data.length * BYTES_PER_SAMPLE;
+        if (buffer == null || buffer.capacity() < length) {
+            buffer = ByteBuffer.allocateDirect(length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buffer.clear();
+        for (final float s : data) {
+            buffer.putShort((short) Math.max(Short.MIN_VALUE + 5, Math.min(s, Short.MAX_VALUE - 5)));
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        dataLength += length;
         support.process(audioBuffer);
     }
 
+    /**
+     * Opens the target file, so that it is created with default permissions.
+     */
+    private void open() throws IOException {
+        out = FileChannel.open(file.toPath(), CREATE, TRUNCATE_EXISTING, WRITE);
+        out.position(HEADER_LENGTH);
+    }
+
     @Override
     public void flush() throws IOException {
-        this.out.flush();
-        this.out.close();
-        final AudioFormat format = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED,
-                this.audioFormat.getSampleRate(),
-                this.audioFormat.getSampleSizeInBits(),
-                channels,
-                this.audioFormat.getFrameSize(),
-                this.audioFormat.getFrameRate(),
-                this.audioFormat.isBigEndian());
-        LOG.log(Level.INFO, "Writing " + file + " in format: " + format);
-        final AudioInputStream in = new AudioInputStream(new FileInputStream(tempFile), format, tempFile.length()/format.getFrameSize());
-        AudioSystem.write(in, AudioFileFormat.Type.WAVE, file);
-        this.tempFile.delete();
+        try {
+            if (audioFormat == null) throw new IOException("No audio to write to " + file);
+            LOG.log(Level.INFO, "Writing " + file + " (" + channels + " channels, "
+                    + audioFormat.getSampleRate() + " Hz, " + audioFormat.getSampleSizeInBits() + " bit)");
+            final ByteBuffer header = createHeader();
+            long position = 0;
+            while (header.hasRemaining()) {
+                position += out.write(header, position);
+            }
+            out.close();
+            complete = true;
+        } finally {
+            close();
+        }
         this.support.flush();
     }
 
+    /**
+     * Closes the file and deletes it, if it has been opened, but not completed by {@link #flush()}.
+     * Does nothing after a successful flush.
+     *
+     * @throws IOException if the incomplete file cannot be deleted
+     */
+    @Override
+    public void close() throws IOException {
+        if (out == null) return;
+        try {
+            out.close();
+        } finally {
+            out = null;
+            if (!complete) Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    /**
+     * Creates the {@code RIFF/WAVE} header with the final chunk sizes.
+     * Sizes are 32 bit unsigned values, so files are limited to 4GB.
+     */
+    private ByteBuffer createHeader() {
+        final int bytesPerSample = BYTES_PER_SAMPLE;
+        final int sampleRate = Math.round(audioFormat.getSampleRate());
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[]{'R', 'I', 'F', 'F'});
+        header.putInt((int) Math.min(0xFFFFFFFFL, HEADER_LENGTH - 8 + dataLength));
+        header.put(new byte[]{'W', 'A', 'V', 'E'});
+        header.put(new byte[]{'f', 'm', 't', ' '});
+        header.putInt(16);
+        header.putShort(WAVE_FORMAT_PCM);
+        header.putShort((short) channels);
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * channels * bytesPerSample);
+        header.putShort((short) (channels * bytesPerSample));
+        header.putShort((short) audioFormat.getSampleSizeInBits());
+        header.put(new byte[]{'d', 'a', 't', 'a'});
+        header.putInt((int) Math.min(0xFFFFFFFFL, dataLength));
+        header.flip();
+        return header;
+    }
+
     @Override
     public AudioBuffer getOutput() throws IOException {
         return null;
@@ -0,0 +1,128 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import com.tagtraum.jipes.math.AbstractMatrix;
+
+import java.util.Arrays;
+
+/**
+ * Matrix view of overlapping analysis windows, cut on demand from a single
+ * array of raw (non-overlapping) samples. Row {@code r} contains the samples
+ * {@code [r * hopSize, r * hopSize + sliceLength)}. Samples past the end
+ * of the signal are zero.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class WindowedSamples extends AbstractMatrix {
+
+    private final float[] samples;
+    private final int length;
+    private final int rows;
+    private final int sliceLength;
+    private final int hopSize;
+
+    /**
+     * Creates a windowed view.
+     *
+     * @param samples raw samples, not copied
+     * @param length number of valid samples in {@code samples}
+     * @param rows number of windows
+     * @param sliceLength window length
+     * @param hopSize distance between windows
+     */
+    public WindowedSamples(final float[] samples, final int length, final int rows, final int sliceLength, final int hopSize) {
+        this.samples = samples;
+        this.length = length;
+        this.rows = rows;
+        this.sliceLength = sliceLength;
+        this.hopSize = hopSize;
+    }
+
+    /**
+     * Raw samples. Only the first {@link #getLength()} values are valid.
+     *
+     * @return raw samples
+     */
+    public float[] getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return number of raw samples
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public int getSliceLength() {
+        return sliceLength;
+    }
+
+    public int getHopSize() {
+        return hopSize;
+    }
+
+    @Override
+    public float get(final int row, final int column) {
+        final int index = row * hopSize + column;
+        return index < length ? samples[index] : 0f;
+    }
+
+    @Override
+    public float[] getRow(final int row) {
+        final float[] window = new float[sliceLength];
+        copyRow(row, window, 0);
+        return window;
+    }
+
+    /**
+     * Copies a window into the given array.
+     *
+     * @param row row
+     * @param dest destination
+     * @param offset offset into the destination
+     */
+    public void copyRow(final int row, final float[] dest, final int offset) {
+        final int start = row * hopSize;
+        final int available = Math.max(0, Math.min(sliceLength, length - start));
+        System.arraycopy(samples, start, dest, offset, available);
+        if (available < sliceLength) {
+            Arrays.fill(dest, offset + available, offset + sliceLength, 0f);
+        }
+    }
+
+    @Override
+    public int getNumberOfRows() {
+        return rows;
+    }
+
+    @Override
+    public int getNumberOfColumns() {
+        return sliceLength;
+    }
+
+    @Override
+    public boolean isZeroPadded() {
+        return true;
+    }
+
+    @Override
+    protected float get(final int index) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String toString() {
+        return "WindowedSamples{" +
+                "length=" + length +
+                ", rows=" + rows +
+                ", sliceLength=" + sliceLength +
+                ", hopSize=" + hopSize +
+                '}';
+    }
+}
@@ -11,6 +11,7 @@ import com.tagtraum.separator.dsp.BackgroundForegroundSeparation;
 import com.tagtraum.separator.dsp.Channel;
 import com.tagtraum.separator.dsp.HarmonicPercussiveSeparation;
 import com.tagtraum.separator.dsp.Song;
+import com.tagtraum.separator.dsp.SpectrogramCache;
 
 import javax.swing.*;
 import javax.swing.filechooser.FileFilter;
@@ -38,6 +39,8 @@ public class SeparateAction extends AbstractAction {
 
     private static final ResourceBundle STRING_BUNDLE = ResourceBundle.getBundle("com/tagtraum/separator/ui/strings");
     private static final boolean MAC = System.getProperty("os.name").toLowerCase().contains("mac");
+    private static final SpectrogramCache CACHE = new SpectrogramCache(
+            SpectrogramCache.getDefaultDirectory(), 2L * 1024 * 1024 * 1024);
     private final DropAreaWindow dropAreaWindow;
 
     public SeparateAction(final DropAreaWindow dropAreaWindow) {
@@ -118,6 +121,7 @@ public class SeparateAction extends AbstractAction {
                                 final Song song = new Song();
                                 song.setHopSizeInFrames(hopSize);
                                 song.setSliceLengthInFrames(windowSize);
+                                song.setCache(CACHE);
                                 song.read(file);
 
                                 final BackgroundForegroundSeparation bfSeparationFunction = new BackgroundForegroundSeparation();
@@ -0,0 +1,172 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import com.tagtraum.jipes.math.Matrix;
+import org.junit.Test;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests {@link BackgroundForegroundSeparation}.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class BackgroundForegroundSeparationTest {
+
+    @Test
+    public void testMaskDoesNotDependOnParallelism() throws Exception {
+        final Channel channel = createChannel(1500, 64);
+        final Matrix expected = applyWithParallelism(channel, 1);
+        for (final int parallelism : new int[]{2, 3, 8}) {
+            final Matrix mask = applyWithParallelism(channel, parallelism);
+            assertEquals(expected.getNumberOfRows(), mask.getNumberOfRows());
+            assertEquals(expected.getNumberOfColumns(), mask.getNumberOfColumns());
+            for (int row = 0; row < expected.getNumberOfRows(); row++) {
+                for (int column = 0; column < expected.getNumberOfColumns(); column++) {
+                    assertEquals("Mask value " + row + "/" + column + " with parallelism " + parallelism,
+                            Float.floatToIntBits(expected.get(row, column)), Float.floatToIntBits(mask.get(row, column)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSameMaskAsSequentialReference() throws Exception {
+        final Channel channel = createChannel(1200, 64);
+        final Matrix expected = referenceMask(channel);
+        final Matrix mask = applyWithParallelism(channel, 4);
+        assertEquals(expected.getNumberOfRows(), mask.getNumberOfRows());
+        assertEquals(expected.getNumberOfColumns(), mask.getNumberOfColumns());
+        for (int row = 0; row < expected.getNumberOfRows(); row++) {
+            for (int column = 0; column < expected.getNumberOfColumns(); column++) {
+                assertEquals("Mask value " + row + "/" + column,
+                        Float.floatToIntBits(expected.get(row, column)), Float.floatToIntBits(mask.get(row, column)));
+            }
+        }
+    }
+
+    @Test
+    public void testMedian() {
+        final Random random = new Random(0);
+        for (int length = 1; length <= 12; length++) {
+            for (int run = 0; run < 100; run++) {
+                final float[] values = new float[length];
+                for (int i = 0; i < length; i++) {
+                    values[i] = random.nextInt(8) / 2f;
+                }
+                final float[] sorted = values.clone();
+                Arrays.sort(sorted);
+                final float expected = length % 2 != 0
+                        ? sorted[length / 2]
+                        : (sorted[length / 2 - 1] + sorted[length / 2]) / 2f;
+                assertEquals(Arrays.toString(values), expected, BackgroundForegroundSeparation.median(values, length), 0f);
+            }
+        }
+    }
+
+    /**
+     * Straightforward sequential version of the masking loop: each row not masked by a previous row
+     * collects its most similar rows from the full self-similarity matrix, sorted with a stable sort
+     * and then reversed, and masks all of them with their median frame.
+     */
+    private static Matrix referenceMask(final Channel channel) {
+        final Song song = channel.getSong();
+        final double framesPerBeat = 1.0 / (100.0 / 60.0 / 1000.0 * song.getHopSizeInFrames() * 1000.0 / song.getAudioFormat().getSampleRate());
+        final int minDistance = (int) (framesPerBeat * 2);
+        final int maxDistance = minDistance * 10;
+        final int maxSimilarRows = 10;
+        final SelfSimilarityFunction selfSimilarityFunction = new SelfSimilarityFunction();
+        selfSimilarityFunction.setBandwidth(maxDistance);
+        final Matrix selfSimilarityMatrix = selfSimilarityFunction.apply(channel);
+        final Matrix magnitudes = channel.getMagnitudes();
+        final int rows = magnitudes.getNumberOfRows();
+        final int columns = magnitudes.getNumberOfColumns();
+        final RowMajorMatrix mask = new RowMajorMatrix(rows, columns);
+        final BitSet masked = new BitSet(rows);
+        for (int row = 0; row < rows; row++) {
+            if (masked.get(row)) continue;
+            final List<float[]> similarRows = new ArrayList<>();
+            similarRows.add(new float[]{row, 1});
+            for (int otherRow = 0; otherRow < rows; otherRow++) {
+                final int distance = Math.abs(row - otherRow);
+                if (distance < minDistance || distance > maxDistance) continue;
+                final float similarity = selfSimilarityMatrix.get(row, otherRow);
+                if (similarity > 0) similarRows.add(new float[]{otherRow, similarity});
+            }
+            similarRows.sort((a, b) -> Float.compare(a[1], b[1]));
+            Collections.reverse(similarRows);
+            while (similarRows.size() > maxSimilarRows) {
+                similarRows.remove(similarRows.size() - 1);
+            }
+            final float[] medians = new float[columns];
+            for (int column = 0; column < columns; column++) {
+                final float[] region = new float[similarRows.size()];
+                for (int i = 0; i < region.length; i++) {
+                    region[i] = magnitudes.get((int) similarRows.get(i)[0], column);
+                }
+                Arrays.sort(region);
+                medians[column] = region.length % 2 != 0
+                        ? region[region.length / 2]
+                        : (region[region.length / 2 - 1] + region[region.length / 2]) / 2f;
+            }
+            for (final float[] similarRow : similarRows) {
+                final int r = (int) similarRow[0];
+                masked.set(r);
+                for (int column = 0; column < columns; column++) {
+                    final float magnitude = magnitudes.get(r, column);
+                    final float maskValue = column < 5 ? 1 : Math.min(1, magnitude == 0 ? 0 : medians[column] / magnitude);
+                    mask.set(r, column, maskValue);
+                }
+            }
+        }
+        return mask;
+    }
+
+    private static Matrix applyWithParallelism(final Channel channel, final int parallelism) throws Exception {
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            // parallel streams started from within a pool run in that pool
+            return pool.submit(() -> new BackgroundForegroundSeparation().apply(channel)).get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Creates a channel with magnitudes made of a few noisy, repeating patterns.
+     */
+    private static Channel createChannel(final int rows, final int columns) {
+        final Random random = new Random(3);
+        final float[][] patterns = new float[37][columns];
+        for (final float[] pattern : patterns) {
+            for (int column = 0; column < columns; column++) {
+                pattern[column] = random.nextFloat();
+            }
+        }
+        final RowMajorMatrix magnitudes = new RowMajorMatrix(rows, columns);
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                magnitudes.set(row, column, patterns[(row * 7 / 3) % patterns.length][column] + 0.3f * random.nextFloat());
+            }
+        }
+        final Song song = new Song(new AudioFormat(44100, 16, 1, true, false), new ArrayList<>(), null);
+        song.setHopSizeInFrames(1024);
+        song.setSliceLengthInFrames(2048);
+        final int length = rows * 1024 + 2048;
+        return new Channel(song, magnitudes, new WindowedSamples(new float[length], length, rows, 2048, 1024));
+    }
+}
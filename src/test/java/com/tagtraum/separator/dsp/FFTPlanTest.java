@@ -0,0 +1,86 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests {@link FFTPlan} against a naive DFT.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class FFTPlanTest {
+
+    @Test
+    public void testForwardMatchesNaiveDFT() {
+        for (final int size : new int[]{1, 2, 4, 8, 64, 1024}) {
+            final Random random = new Random(size);
+            final float[] real = new float[size];
+            final float[] imaginary = new float[size];
+            for (int i = 0; i < size; i++) {
+                real[i] = random.nextFloat() * 2f - 1f;
+                imaginary[i] = random.nextFloat() * 2f - 1f;
+            }
+            final double[][] expected = dft(real, imaginary);
+            FFTPlan.getInstance(size).forward(real, imaginary);
+            // float accumulation error grows with log(size), magnitudes with sqrt(size)
+            final double delta = 1e-5 * size;
+            for (int k = 0; k < size; k++) {
+                assertEquals("Real part of bin " + k + " of " + size, expected[0][k], real[k], delta);
+                assertEquals("Imaginary part of bin " + k + " of " + size, expected[1][k], imaginary[k], delta);
+            }
+        }
+    }
+
+    @Test
+    public void testInverse() {
+        final int size = 2048;
+        final Random random = new Random(0);
+        final float[] real = new float[size];
+        final float[] imaginary = new float[size];
+        for (int i = 0; i < size; i++) {
+            real[i] = random.nextFloat() * 2f - 1f;
+            imaginary[i] = random.nextFloat() * 2f - 1f;
+        }
+        final float[] originalReal = real.clone();
+        final float[] originalImaginary = imaginary.clone();
+        final FFTPlan plan = FFTPlan.getInstance(size);
+        plan.forward(real, imaginary);
+        plan.inverse(real, imaginary);
+        for (int i = 0; i < size; i++) {
+            assertEquals(originalReal[i], real[i], 1e-5);
+            assertEquals(originalImaginary[i], imaginary[i], 1e-5);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSizeNotPowerOfTwo() {
+        FFTPlan.getInstance(1000);
+    }
+
+    /**
+     * Naive, unscaled DFT in double precision.
+     */
+    static double[][] dft(final float[] real, final float[] imaginary) {
+        final int n = real.length;
+        final double[][] result = new double[2][n];
+        for (int k = 0; k < n; k++) {
+            for (int t = 0; t < n; t++) {
+                final double phi = -2.0 * Math.PI * ((long) k * t % n) / n;
+                final double cos = Math.cos(phi);
+                final double sin = Math.sin(phi);
+                result[0][k] += real[t] * cos - imaginary[t] * sin;
+                result[1][k] += real[t] * sin + imaginary[t] * cos;
+            }
+        }
+        return result;
+    }
+}
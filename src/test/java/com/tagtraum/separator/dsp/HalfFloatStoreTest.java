@@ -0,0 +1,164 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link HalfFloatStore} and its float16 conversion.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class HalfFloatStoreTest {
+
+    private static final int CHUNK_SIZE = 1 << 24;
+    private static final float SCALE = 4096f;
+
+    @Test
+    public void testRoundTripAllHalfs() {
+        for (int bits = 0; bits < 1 << 16; bits++) {
+            final short half = (short) bits;
+            final float f = HalfFloatStore.toFloat(half);
+            if (Float.isNaN(f)) {
+                assertTrue(Float.isNaN(HalfFloatStore.toFloat(HalfFloatStore.toHalf(f))));
+            } else {
+                assertEquals("Half " + Integer.toHexString(bits), bits, HalfFloatStore.toHalf(f) & 0xFFFF);
+            }
+        }
+    }
+
+    @Test
+    public void testNormalValues() {
+        assertHalf(0x3C00, 1f);
+        assertHalf(0xC000, -2f);
+        assertHalf(0x3555, 1f / 3f);
+        assertHalf(0x0400, 0x1p-14f); // smallest normal
+        assertHalf(0x7BFF, 65504f); // largest normal
+        assertEquals(65504f, HalfFloatStore.toFloat((short) 0x7BFF), 0f);
+    }
+
+    @Test
+    public void testTiesToEven() {
+        // halfway between 1 and 1 + 2^-10 rounds down to the even 1
+        assertHalf(0x3C00, 1f + 0x1p-11f);
+        // halfway between 1 + 2^-10 and 1 + 2^-9 rounds up to the even 1 + 2^-9
+        assertHalf(0x3C02, 1f + 3 * 0x1p-11f);
+        // just above halfway rounds up
+        assertHalf(0x3C01, 1f + 0x1p-11f + 0x1p-23f);
+        // just below halfway rounds down
+        assertHalf(0x3C01, 1f + 3 * 0x1p-11f - 0x1p-23f);
+    }
+
+    @Test
+    public void testCarryIntoExponent() {
+        // halfway between 1 - 2^-11 (odd mantissa 0x3FF) and 1 rounds up into the next exponent
+        assertHalf(0x3C00, 1f - 0x1p-12f);
+        // halfway between 65504 and 65536 rounds to infinity
+        assertHalf(0x7C00, 65520f);
+        assertHalf(0x7BFF, 65519.99f);
+    }
+
+    @Test
+    public void testSubnormals() {
+        assertHalf(0x0001, 0x1p-24f); // smallest subnormal
+        assertHalf(0x03FF, 1023 * 0x1p-24f); // largest subnormal
+        assertEquals(1023 * 0x1p-24f, HalfFloatStore.toFloat((short) 0x03FF), 0f);
+        // halfway between the largest subnormal and the smallest normal rounds to the even normal
+        assertHalf(0x0400, 1023.5f * 0x1p-24f);
+        // ties between subnormals
+        assertHalf(0x0002, 3 * 0x1p-25f);
+        assertHalf(0x0002, 5 * 0x1p-25f);
+        // 2^-25 is halfway between 0 and the smallest subnormal, and rounds to 0
+        assertHalf(0x0000, 0x1p-25f);
+        assertHalf(0x0001, 0x1p-25f + 0x1p-40f);
+        // below 2^-25 everything is 0, but keeps its sign
+        assertHalf(0x0000, 0x1p-26f);
+        assertHalf(0x0000, Float.MIN_VALUE);
+        assertHalf(0x8000, -0x1p-30f);
+        assertHalf(0x8000, -0f);
+    }
+
+    @Test
+    public void testSpecialValues() {
+        assertHalf(0x7C00, Float.POSITIVE_INFINITY);
+        assertHalf(0xFC00, Float.NEGATIVE_INFINITY);
+        assertHalf(0x7C00, 1e10f);
+        assertHalf(0xFC00, -Float.MAX_VALUE);
+        assertTrue(Float.isNaN(HalfFloatStore.toFloat(HalfFloatStore.toHalf(Float.NaN))));
+        assertEquals(Float.POSITIVE_INFINITY, HalfFloatStore.toFloat((short) 0x7C00), 0f);
+        assertEquals(Float.NEGATIVE_INFINITY, HalfFloatStore.toFloat((short) 0xFC00), 0f);
+    }
+
+    @Test
+    public void testScaledValues() {
+        final HalfFloatStore store = new HalfFloatStore(8);
+        // largest value
+        store.set(0, 65504f * SCALE);
+        assertEquals(65504f * SCALE, store.get(0), 0f);
+        // too large
+        store.set(1, 65520f * SCALE);
+        assertEquals(Float.POSITIVE_INFINITY, store.get(1), 0f);
+        // values that are scaled below 2^-25 become 0
+        store.set(2, 0x1p-26f * SCALE);
+        assertEquals(0f, store.get(2), 0f);
+        // smallest value
+        store.set(3, 0x1p-24f * SCALE);
+        assertEquals(0x1p-24f * SCALE, store.get(3), 0f);
+        // full precision from 0.25 on
+        store.set(4, 0.25f + 0.25f / 1024);
+        assertEquals(0.25f + 0.25f / 1024, store.get(4), 0f);
+        store.set(5, Float.NaN);
+        assertTrue(Float.isNaN(store.get(5)));
+        // relative error of half a unit in the last place
+        for (float f = 0.3f; f < 1e8f; f *= 1.37f) {
+            store.set(6, f);
+            assertEquals(f, store.get(6), f * 0x1p-11f);
+        }
+    }
+
+    @Test
+    public void testGrowAcrossChunkBoundary() {
+        final HalfFloatStore store = new HalfFloatStore(CHUNK_SIZE - 8);
+        assertEquals(CHUNK_SIZE - 8, store.size());
+        for (int i = 1; i <= 8; i++) {
+            store.set(CHUNK_SIZE - 8 - i, i);
+        }
+        store.ensureCapacity(CHUNK_SIZE + 8);
+        // geometric growth
+        assertEquals((CHUNK_SIZE - 8) + (CHUNK_SIZE - 8) / 2, store.size());
+        for (int i = 1; i <= 8; i++) {
+            assertEquals(i, store.get(CHUNK_SIZE - 8 - i), 0f);
+        }
+        // bulk access across the boundary between the first and the second chunk
+        final float[] values = new float[40];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i + 1;
+        }
+        store.set(CHUNK_SIZE - 20, values, 0, values.length);
+        final float[] read = new float[values.length + 2];
+        store.get(CHUNK_SIZE - 20, read, 2, values.length);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], read[i + 2], 0f);
+            assertEquals(values[i], store.get(CHUNK_SIZE - 20 + i), 0f);
+        }
+        // growing by a single value still grows by half
+        final long size = store.size();
+        store.ensureCapacity(size + 1);
+        assertEquals(size + size / 2, store.size());
+        assertEquals(20f, store.get(CHUNK_SIZE - 1), 0f);
+        assertEquals(21f, store.get(CHUNK_SIZE), 0f);
+        // no shrinking
+        store.ensureCapacity(10);
+        assertEquals(size + size / 2, store.size());
+    }
+
+    private static void assertHalf(final int expected, final float f) {
+        assertEquals("toHalf(" + f + ")", Integer.toHexString(expected), Integer.toHexString(HalfFloatStore.toHalf(f) & 0xFFFF));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link HeapFloatStore} and the HEAP {@link Storage}.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class HeapFloatStoreTest {
+
+    @Test
+    public void testGrowKeepsValues() {
+        final HeapFloatStore store = new HeapFloatStore(100);
+        assertEquals(100, store.size());
+        store.set(99, 42f);
+        store.ensureCapacity(101);
+        // geometric growth
+        assertEquals(150, store.size());
+        assertEquals(150, store.getArray().length);
+        assertEquals(42f, store.get(99), 0f);
+        store.ensureCapacity(1000);
+        assertEquals(1000, store.size());
+        assertEquals(42f, store.getArray()[99], 0f);
+        // no shrinking
+        store.ensureCapacity(10);
+        assertEquals(1000, store.size());
+    }
+
+    @Test
+    public void testBulkAccess() {
+        final HeapFloatStore store = new HeapFloatStore(10);
+        store.set(3, new float[]{1, 2, 3, 4, 5}, 1, 3);
+        final float[] read = new float[6];
+        store.get(2, read, 1, 5);
+        assertArrayEquals(new float[]{0, 0, 2, 3, 4, 0}, read, 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooLarge() {
+        new HeapFloatStore(Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void testHeapMatrixIsBackedByStore() {
+        final FloatStore store = Storage.HEAP.createStore(12);
+        final DenseMatrix matrix = Storage.HEAP.createMatrix(3, 4, store);
+        assertTrue(matrix instanceof RowMajorMatrix);
+        matrix.set(2, 1, 7f);
+        assertEquals(7f, store.get(9), 0f);
+        assertTrue(Storage.HEAP.createMatrix(3, 4) instanceof RowMajorMatrix);
+        assertTrue(Storage.HALF.createMatrix(3, 4) instanceof StoredMatrix);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests {@link MagnitudeKernel} against a naive DFT.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class MagnitudeKernelTest {
+
+    @Test
+    public void testMagnitudesMatchNaiveDFT() {
+        for (final int length : new int[]{2, 4, 8, 64, 2048}) {
+            final Random random = new Random(length);
+            final int offset = 3;
+            final float[] source = new float[offset + length];
+            for (int i = 0; i < source.length; i++) {
+                source[i] = random.nextFloat() * 2000f - 1000f;
+            }
+            // full window, zero padded with odd and even number of samples
+            for (final int available : new int[]{length, length - 1, length / 2}) {
+                final float[] magnitudes = new float[length / 2];
+                MagnitudeKernel.getInstance(length).magnitudes(source, offset, available, magnitudes, 0);
+                final float[] window = new float[length];
+                System.arraycopy(source, offset, window, 0, available);
+                final double[][] expected = FFTPlanTest.dft(window, new float[length]);
+                double max = 0;
+                for (int k = 0; k < length / 2; k++) {
+                    max = Math.max(max, Math.hypot(expected[0][k], expected[1][k]));
+                }
+                for (int k = 0; k < length / 2; k++) {
+                    assertEquals("Bin " + k + " of " + length + " (" + available + " samples)",
+                            Math.hypot(expected[0][k], expected[1][k]), magnitudes[k], max * 1e-5);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDestOffset() {
+        final float[] source = new float[64];
+        source[1] = 1f;
+        final float[] magnitudes = new float[40];
+        MagnitudeKernel.getInstance(64).magnitudes(source, 0, 64, magnitudes, 8);
+        assertEquals(0f, magnitudes[7], 0f);
+        // a delayed impulse has a flat magnitude spectrum
+        for (int k = 8; k < 40; k++) {
+            assertEquals(1f, magnitudes[k], 1e-6);
+        }
+    }
+
+    @Test
+    public void testNoAllocationPerFrame() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        final MagnitudeKernel kernel = MagnitudeKernel.getInstance(2048);
+        final float[] source = new float[4096];
+        final float[] magnitudes = new float[1024];
+        final long threadId = Thread.currentThread().getId();
+        // warm up, so that per-thread scratch buffers exist
+        for (int i = 0; i < 1000; i++) {
+            kernel.magnitudes(source, i % 100, 2048, magnitudes, 0);
+        }
+        final int frames = 10000;
+        final long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < frames; i++) {
+            kernel.magnitudes(source, i % 100, 2048, magnitudes, 0);
+        }
+        final long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+        // allow for a little noise caused by the measurement itself, but not for a single buffer per frame
+        assertEquals("Bytes allocated for " + frames + " frames", 0, allocated, 1024);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLengthNotPowerOfTwo() {
+        MagnitudeKernel.getInstance(1000);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests {@link MappedFloatStore}.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class MappedFloatStoreTest {
+
+    private static final int CHUNK_SIZE = 1 << 24;
+
+    @Test
+    public void testSizeIsRoundedUpToChunks() throws IOException {
+        final File directory = Files.createTempDirectory("MappedFloatStoreTest").toFile();
+        try {
+            final MappedFloatStore store = new MappedFloatStore(10, directory);
+            assertEquals(CHUNK_SIZE, store.size());
+            store.ensureCapacity(CHUNK_SIZE);
+            assertEquals(CHUNK_SIZE, store.size());
+            store.ensureCapacity(CHUNK_SIZE + 1);
+            assertEquals(2 * CHUNK_SIZE, store.size());
+            // no shrinking
+            store.ensureCapacity(10);
+            assertEquals(2 * CHUNK_SIZE, store.size());
+            // backing files are deleted right after mapping
+            assertEquals(0, directory.list().length);
+        } finally {
+            Files.delete(directory.toPath());
+        }
+    }
+
+    @Test
+    public void testBulkAccessAcrossChunkBoundary() throws IOException {
+        final File directory = Files.createTempDirectory("MappedFloatStoreTest").toFile();
+        try {
+            final MappedFloatStore store = new MappedFloatStore(3L * CHUNK_SIZE, directory);
+            // spans the end of the first chunk, all of the second and the start of the third
+            final float[] values = new float[CHUNK_SIZE + 200];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = i + 1;
+            }
+            final long index = CHUNK_SIZE - 100;
+            store.set(index, values, 0, values.length);
+            assertEquals(0f, store.get(index - 1), 0f);
+            assertEquals(0f, store.get(index + values.length), 0f);
+            for (int i = 0; i < values.length; i += 997) {
+                assertEquals(values[i], store.get(index + i), 0f);
+            }
+            assertEquals(100f, store.get(CHUNK_SIZE - 1), 0f);
+            assertEquals(101f, store.get(CHUNK_SIZE), 0f);
+            assertEquals(values[CHUNK_SIZE + 99], store.get(2L * CHUNK_SIZE - 1), 0f);
+            assertEquals(values[CHUNK_SIZE + 100], store.get(2L * CHUNK_SIZE), 0f);
+
+            final float[] read = new float[values.length + 3];
+            store.get(index, read, 3, values.length);
+            for (int i = 0; i < values.length; i++) {
+                assertEquals(values[i], read[i + 3], 0f);
+            }
+
+            // partial arrays
+            store.set(CHUNK_SIZE - 2, new float[]{-1, -2, -3, -4, -5, -6}, 1, 4);
+            final float[] partial = new float[6];
+            store.get(CHUNK_SIZE - 3, partial, 0, 6);
+            assertArrayEquals(new float[]{98, -2, -3, -4, -5, 103}, partial, 0f);
+        } finally {
+            Files.delete(directory.toPath());
+        }
+    }
+
+    @Test
+    public void testLongIndices() throws IOException {
+        final File directory = Files.createTempDirectory("MappedFloatStoreTest").toFile();
+        try {
+            // larger than an int can address, the backing files are sparse
+            final long size = (1L << 31) + 100;
+            final MappedFloatStore store = new MappedFloatStore(size, directory);
+            assertEquals(129L * CHUNK_SIZE, store.size());
+            final long[] indices = {Integer.MAX_VALUE - 1L, Integer.MAX_VALUE, 1L << 31, (1L << 31) + 99, 0};
+            for (int i = 0; i < indices.length; i++) {
+                store.set(indices[i], i + 1);
+            }
+            for (int i = 0; i < indices.length; i++) {
+                assertEquals(i + 1, store.get(indices[i]), 0f);
+            }
+            // bulk access across 2^31, which is also a chunk boundary
+            final float[] values = {1.5f, 2.5f, 3.5f, 4.5f};
+            store.set((1L << 31) - 2, values, 0, values.length);
+            final float[] read = new float[values.length];
+            store.get((1L << 31) - 2, read, 0, read.length);
+            assertArrayEquals(values, read, 0f);
+            assertEquals(3.5f, store.get(1L << 31), 0f);
+        } finally {
+            Files.delete(directory.toPath());
+        }
+    }
+
+    @Test
+    public void testGrowKeepsValues() throws IOException {
+        final File directory = Files.createTempDirectory("MappedFloatStoreTest").toFile();
+        try {
+            final MappedFloatStore store = new MappedFloatStore(CHUNK_SIZE, directory);
+            store.set(CHUNK_SIZE - 1, 42f);
+            store.ensureCapacity(3L * CHUNK_SIZE);
+            assertEquals(42f, store.get(CHUNK_SIZE - 1), 0f);
+            assertEquals(0f, store.get(3L * CHUNK_SIZE - 1), 0f);
+            store.set(3L * CHUNK_SIZE - 1, 7f);
+            assertEquals(7f, store.get(3L * CHUNK_SIZE - 1), 0f);
+        } finally {
+            Files.delete(directory.toPath());
+        }
+    }
+}
+
@@ -0,0 +1,131 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import com.tagtraum.jipes.AbstractSignalProcessor;
+import com.tagtraum.jipes.audio.AudioBuffer;
+import com.tagtraum.jipes.audio.OLA;
+import com.tagtraum.jipes.audio.RealAudioBuffer;
+import org.junit.Test;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests {@link OverlapAddPipeline}.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class OverlapAddPipelineTest {
+
+    private static final AudioFormat FORMAT = new AudioFormat(44100, 16, 1, true, false);
+    private static final int SLICE_LENGTH = 64;
+    private static final int HOP_SIZE = 16;
+
+    @Test
+    public void testSameSequenceAsSingleThread() throws IOException {
+        final int channels = 3;
+        final int rows = 200;
+        final float[][][] frames = createFrames(channels, rows);
+
+        // reference: all OLA processors called one after another, like a single-threaded write
+        final Recorder expected = new Recorder();
+        final List<OLA> sequential = createOlaProcessors(channels);
+        sequential.forEach(ola -> ola.connectTo(expected));
+        for (int row = 0; row < rows; row++) {
+            for (int channel = 0; channel < channels; channel++) {
+                sequential.get(channel).process(new RealAudioBuffer(row * HOP_SIZE, frames[channel][row].clone(), FORMAT));
+            }
+        }
+        for (final OLA ola : sequential) {
+            ola.flush();
+        }
+
+        final Recorder actual = new Recorder();
+        try (final OverlapAddPipeline pipeline = new OverlapAddPipeline(createOlaProcessors(channels), actual)) {
+            for (int row = 0; row < rows; row++) {
+                for (int channel = 0; channel < channels; channel++) {
+                    pipeline.process(channel, new RealAudioBuffer(row * HOP_SIZE, frames[channel][row].clone(), FORMAT));
+                }
+            }
+            pipeline.flush();
+        }
+        assertFalse(expected.events.isEmpty());
+        assertEquals(expected.events, actual.events);
+    }
+
+    @Test
+    public void testFailingJoin() {
+        final Recorder failing = new Recorder() {
+            @Override
+            protected AudioBuffer processNext(final AudioBuffer buffer) throws IOException {
+                throw new IOException("Failing join");
+            }
+        };
+        final float[][][] frames = createFrames(2, 1000);
+        try (final OverlapAddPipeline pipeline = new OverlapAddPipeline(createOlaProcessors(2), failing)) {
+            for (int row = 0; row < 1000; row++) {
+                for (int channel = 0; channel < 2; channel++) {
+                    pipeline.process(channel, new RealAudioBuffer(row * HOP_SIZE, frames[channel][row], FORMAT));
+                }
+            }
+            pipeline.flush();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("Failing join", e.getMessage());
+        }
+    }
+
+    private static List<OLA> createOlaProcessors(final int channels) {
+        final List<OLA> olaProcessors = new ArrayList<>();
+        for (int channel = 0; channel < channels; channel++) {
+            olaProcessors.add(new OLA(SLICE_LENGTH, HOP_SIZE));
+        }
+        return olaProcessors;
+    }
+
+    private static float[][][] createFrames(final int channels, final int rows) {
+        final Random random = new Random(0);
+        final float[][][] frames = new float[channels][rows][SLICE_LENGTH];
+        for (final float[][] channel : frames) {
+            for (final float[] frame : channel) {
+                for (int i = 0; i < frame.length; i++) {
+                    frame[i] = random.nextFloat();
+                }
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Records the buffers and flushes it sees.
+     */
+    private static class Recorder extends AbstractSignalProcessor<AudioBuffer, AudioBuffer> {
+
+        private final List<String> events = new ArrayList<>();
+
+        @Override
+        protected AudioBuffer processNext(final AudioBuffer buffer) throws IOException {
+            events.add(buffer.getFrameNumber() + ": " + Arrays.toString(buffer.getRealData()));
+            return buffer;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            events.add("flush");
+            super.flush();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests {@link QuantizedMask}.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class QuantizedMaskTest {
+
+    /** Max error of 8 bit quantization of values in {@code [0, 1]}, i.e. half a step, plus float rounding. */
+    private static final float MAX_ERROR = 1f / 510f + 1e-6f;
+
+    @Test
+    public void testQuantizeRoundTrip() {
+        for (final Storage storage : new Storage[]{Storage.HEAP, Storage.HALF, Storage.MAPPED}) {
+            final DenseMatrix mask = createMask(storage, 300, 65);
+            final QuantizedMask quantized = QuantizedMask.quantize(mask);
+            assertEquals(mask.getNumberOfRows(), quantized.getNumberOfRows());
+            assertEquals(mask.getNumberOfColumns(), quantized.getNumberOfColumns());
+            final float[] row = new float[mask.getNumberOfColumns() + 2];
+            for (int r = 0; r < mask.getNumberOfRows(); r++) {
+                quantized.copyRow(r, row, 2);
+                for (int c = 0; c < mask.getNumberOfColumns(); c++) {
+                    final float expected = Math.max(0f, Math.min(1f, mask.get(r, c)));
+                    assertEquals(storage + " " + r + "/" + c, expected, quantized.get(r, c), MAX_ERROR);
+                    assertEquals(quantized.get(r, c), row[c + 2], 0f);
+                    assertEquals(quantized.get(r, c), quantized.getRow(r)[c], 0f);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testInverse() {
+        final DenseMatrix mask = createMask(Storage.HEAP, 50, 33);
+        final QuantizedMask quantized = QuantizedMask.quantize(mask);
+        final QuantizedMask inverse = quantized.inverse();
+        for (int r = 0; r < mask.getNumberOfRows(); r++) {
+            for (int c = 0; c < mask.getNumberOfColumns(); c++) {
+                final float expected = 1f - Math.max(0f, Math.min(1f, mask.get(r, c)));
+                assertEquals(expected, inverse.get(r, c), MAX_ERROR);
+                // both masks together always add up to 1, like their unquantized counterparts
+                assertEquals(1f, quantized.get(r, c) + inverse.get(r, c), 1e-6f);
+                // the inverse of the inverse is the original mask
+                assertEquals(quantized.get(r, c), inverse.inverse().get(r, c), 0f);
+            }
+        }
+    }
+
+    @Test
+    public void testExactValues() {
+        final DenseMatrix mask = Storage.HEAP.createMatrix(1, 256);
+        for (int q = 0; q < 256; q++) {
+            mask.set(0, q, q / 255f);
+        }
+        final QuantizedMask quantized = QuantizedMask.quantize(mask);
+        for (int q = 0; q < 256; q++) {
+            assertEquals(q / 255f, quantized.get(0, q), 0f);
+        }
+        assertSame(quantized, QuantizedMask.quantize(quantized));
+    }
+
+    /**
+     * Creates a mask with random values, some of them slightly outside of {@code [0, 1]}.
+     */
+    private static DenseMatrix createMask(final Storage storage, final int rows, final int columns) {
+        final Random random = new Random(rows);
+        final DenseMatrix mask = storage.createMatrix(rows, columns);
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < columns; c++) {
+                mask.set(r, c, random.nextFloat() * 1.2f - 0.1f);
+            }
+        }
+        return mask;
+    }
+}
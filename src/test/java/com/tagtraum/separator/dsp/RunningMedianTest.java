@@ -0,0 +1,104 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests {@link RunningMedian} against medians found by sorting each window.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class RunningMedianTest {
+
+    @Test
+    public void testMatchesSortMedian() {
+        final Random random = new Random(0);
+        for (final int halfWindow : new int[]{0, 1, 2, 6, 30, 100}) {
+            for (final int length : new int[]{1, 2, 7, 50, 1000}) {
+                final float[] source = new float[length];
+                for (int i = 0; i < length; i++) {
+                    // few distinct values, so that there are plenty of ties
+                    source[i] = random.nextInt(20) / 4f;
+                }
+                final float[] medians = new float[length];
+                new RunningMedian(halfWindow).filter(source, 0, 1, length, medians, 0, 1);
+                final float[] expected = sortMedians(source, halfWindow);
+                for (int i = 0; i < length; i++) {
+                    assertEquals("Median " + i + " (half window " + halfWindow + ", length " + length + ")",
+                            Float.floatToIntBits(expected[i]), Float.floatToIntBits(medians[i]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testStrides() {
+        final Random random = new Random(1);
+        final int rows = 200;
+        final int columns = 5;
+        // row-major data, filtered along column 2
+        final float[] data = new float[rows * columns];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = random.nextFloat();
+        }
+        final float[] column = new float[rows];
+        for (int row = 0; row < rows; row++) {
+            column[row] = data[row * columns + 2];
+        }
+        final float[] dest = new float[rows * 3 + 1];
+        final RunningMedian runningMedian = new RunningMedian(8);
+        runningMedian.filter(data, 2, columns, rows, dest, 1, 3);
+        final float[] expected = sortMedians(column, 8);
+        for (int row = 0; row < rows; row++) {
+            assertEquals(expected[row], dest[1 + row * 3], 0f);
+        }
+        assertEquals(0f, dest[0], 0f);
+    }
+
+    @Test
+    public void testReuse() {
+        final Random random = new Random(2);
+        final RunningMedian runningMedian = new RunningMedian(4);
+        for (int run = 0; run < 10; run++) {
+            final float[] source = new float[100 + run];
+            for (int i = 0; i < source.length; i++) {
+                source[i] = random.nextFloat();
+            }
+            final float[] medians = new float[source.length];
+            runningMedian.filter(source, 0, 1, source.length, medians, 0, 1);
+            assertEquals(Arrays.toString(sortMedians(source, 4)), Arrays.toString(medians));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeHalfWindow() {
+        new RunningMedian(-1);
+    }
+
+    /**
+     * Medians of windows of length {@code 2 * halfWindow + 1}, with the signal padded by repeating its edge values.
+     */
+    private static float[] sortMedians(final float[] source, final int halfWindow) {
+        final float[] medians = new float[source.length];
+        final float[] window = new float[2 * halfWindow + 1];
+        for (int i = 0; i < source.length; i++) {
+            for (int j = 0; j < window.length; j++) {
+                final int index = Math.max(0, Math.min(source.length - 1, i - halfWindow + j));
+                window[j] = source[index];
+            }
+            Arrays.sort(window);
+            medians[i] = window[halfWindow];
+        }
+        return medians;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import com.tagtraum.jipes.math.Matrix;
+import org.junit.Test;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests {@link Song}.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class SongTest {
+
+    @Test
+    public void testResidualOfNestedPartIsRejected() throws IOException {
+        final Song song = createSong(20, 32);
+        final Function<Channel, Matrix> halfMask = channel -> {
+            final Matrix magnitudes = channel.getMagnitudes();
+            final RowMajorMatrix mask = new RowMajorMatrix(magnitudes.getNumberOfRows(), magnitudes.getNumberOfColumns());
+            for (int row = 0; row < mask.getNumberOfRows(); row++) {
+                for (int column = 0; column < mask.getNumberOfColumns(); column++) {
+                    mask.set(row, column, 0.5f);
+                }
+            }
+            return mask;
+        };
+        final Song nested = song.separate(halfMask)[0].separate(halfMask)[0];
+        final File file = new File(System.getProperty("java.io.tmpdir"), "SongTest-" + System.nanoTime() + ".wav");
+        final File residualFile = new File(System.getProperty("java.io.tmpdir"), "SongTest-" + System.nanoTime() + "-residual.wav");
+        try {
+            nested.write(file, residualFile);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // nothing was written
+            assertFalse(file.exists());
+            assertFalse(residualFile.exists());
+        }
+    }
+
+    private static Song createSong(final int rows, final int columns) {
+        final List<Channel> channels = new ArrayList<>();
+        final Song song = new Song(new AudioFormat(44100, 16, 1, true, false), channels, null);
+        song.setHopSizeInFrames(columns);
+        song.setSliceLengthInFrames(columns * 2);
+        final RowMajorMatrix magnitudes = new RowMajorMatrix(rows, columns);
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                magnitudes.set(row, column, row + column + 1);
+            }
+        }
+        final int length = (rows - 1) * columns + columns * 2;
+        channels.add(new Channel(song, magnitudes, new WindowedSamples(new float[length], length, rows, columns * 2, columns)));
+        return song;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import com.tagtraum.jipes.math.Matrix;
+import org.junit.Assume;
+import org.junit.Test;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link SpectrogramCache}.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class SpectrogramCacheTest {
+
+    private static final AudioFormat FORMAT = new AudioFormat(44100, 16, 2, true, false);
+    private static final int HOP_SIZE = 256;
+    private static final int SLICE_LENGTH = 512;
+    private static final int ROWS = 40;
+    private static final int COLUMNS = SLICE_LENGTH / 2;
+
+    @Test
+    public void testStoreAndLoad() throws IOException {
+        final Path directory = Files.createTempDirectory("SpectrogramCacheTest");
+        try {
+            final File audioFile = createAudioFile(directory);
+            final SpectrogramCache cache = new SpectrogramCache(directory.resolve("cache").toFile(), Long.MAX_VALUE);
+            for (final Storage storage : Storage.values()) {
+                final Song song = createSong(storage, new Random(1), true);
+                final String key = cache.createKey(audioFile, HOP_SIZE, SLICE_LENGTH, FORMAT, storage);
+                cache.store(key, song);
+                final Song loadedSong = createSong(storage, null, false);
+                final List<Channel> loaded = cache.load(key, loadedSong);
+                assertNotNull(storage.toString(), loaded);
+                assertEquals(2, loaded.size());
+                for (int channel = 0; channel < loaded.size(); channel++) {
+                    assertMagnitudesEqual(song.getChannels().get(channel).getMagnitudes(), loaded.get(channel).getMagnitudes());
+                    assertSamplesEqual(song.getChannels().get(channel).getSamples(), loaded.get(channel).getSamples());
+                }
+                // the second channel duplicates the first one, which is detected after loading, too
+                final WindowedSamples[] samples = loaded.stream().map(Channel::getSamples).toArray(WindowedSamples[]::new);
+                assertArrayEquals(new int[]{0, 0}, Song.findSourceChannels(samples));
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testLossyMagnitudesAreCachedSeparately() throws IOException {
+        final Path directory = Files.createTempDirectory("SpectrogramCacheTest");
+        try {
+            final File audioFile = createAudioFile(directory);
+            final SpectrogramCache cache = new SpectrogramCache(directory.resolve("cache").toFile(), Long.MAX_VALUE);
+            final String heapKey = cache.createKey(audioFile, HOP_SIZE, SLICE_LENGTH, FORMAT, Storage.HEAP);
+            final String halfKey = cache.createKey(audioFile, HOP_SIZE, SLICE_LENGTH, FORMAT, Storage.HALF);
+            assertNotEquals(heapKey, halfKey);
+            // same precision, same key
+            assertEquals(heapKey, cache.createKey(audioFile, HOP_SIZE, SLICE_LENGTH, FORMAT, Storage.MAPPED));
+            assertNotEquals(heapKey, cache.createKey(audioFile, HOP_SIZE, SLICE_LENGTH * 2, FORMAT, Storage.HEAP));
+
+            // an entry with full precision magnitudes is rejected, if lossy magnitudes are expected
+            cache.store(heapKey, createSong(Storage.HEAP, new Random(2), false));
+            final Path entry = directory.resolve("cache").resolve(heapKey + ".spec");
+            assertTrue(Files.isRegularFile(entry));
+            assertNull(cache.load(heapKey, createSong(Storage.HALF, null, false)));
+            // and deleted
+            assertFalse(Files.exists(entry));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws IOException {
+        final Path directory = Files.createTempDirectory("SpectrogramCacheTest");
+        try {
+            final Path cacheDirectory = directory.resolve("cache");
+            final long entrySize = 64 + 4L * 2 * (ROWS * COLUMNS + getSamplesLength());
+            // room for two entries
+            final SpectrogramCache cache = new SpectrogramCache(cacheDirectory.toFile(), 2 * entrySize + entrySize / 2);
+            cache.store("a", createSong(Storage.HEAP, new Random(3), false));
+            cache.store("b", createSong(Storage.HEAP, new Random(4), false));
+            final Path a = cacheDirectory.resolve("a.spec");
+            final Path b = cacheDirectory.resolve("b.spec");
+            final Path c = cacheDirectory.resolve("c.spec");
+            assertEquals(entrySize, Files.size(a));
+            assertEquals(entrySize, Files.size(b));
+
+            // a is older than b, but is used again
+            final long now = System.currentTimeMillis();
+            Files.setLastModifiedTime(a, FileTime.fromMillis(now - 20000));
+            Files.setLastModifiedTime(b, FileTime.fromMillis(now - 10000));
+            assertNotNull(cache.load("a", createSong(Storage.HEAP, null, false)));
+
+            cache.store("c", createSong(Storage.HEAP, new Random(5), false));
+            assertTrue(Files.exists(a));
+            assertFalse(Files.exists(b));
+            assertTrue(Files.exists(c));
+
+            // evict does nothing, as long as the cache is small enough
+            cache.evict();
+            assertTrue(Files.exists(a));
+            assertTrue(Files.exists(c));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testPrivateDirectory() throws IOException {
+        Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        final Path directory = Files.createTempDirectory("SpectrogramCacheTest");
+        try {
+            final Path cacheDirectory = directory.resolve("parent").resolve("cache");
+            final SpectrogramCache cache = new SpectrogramCache(cacheDirectory.toFile(), Long.MAX_VALUE);
+            cache.store("a", createSong(Storage.HEAP, new Random(6), false));
+            assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(cacheDirectory)));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    /**
+     * Creates a stereo song with random magnitudes and samples.
+     *
+     * @param storage storage
+     * @param random source of values or {@code null} for a song without channels
+     * @param dualMono if {@code true}, both channels are the same
+     */
+    private static Song createSong(final Storage storage, final Random random, final boolean dualMono) {
+        final Song song = new Song(FORMAT, new ArrayList<>(), null);
+        song.setHopSizeInFrames(HOP_SIZE);
+        song.setSliceLengthInFrames(SLICE_LENGTH);
+        song.setStorage(storage);
+        if (random == null) return song;
+        Channel previous = null;
+        for (int channel = 0; channel < FORMAT.getChannels(); channel++) {
+            if (dualMono && previous != null) {
+                final float[] samples = previous.getSamples().getSamples().clone();
+                song.getChannels().add(new Channel(song, previous.getMagnitudes(),
+                        new WindowedSamples(samples, samples.length, ROWS, SLICE_LENGTH, HOP_SIZE)));
+                continue;
+            }
+            final DenseMatrix magnitudes = storage.createMatrix(ROWS, COLUMNS);
+            for (int row = 0; row < ROWS; row++) {
+                for (int column = 0; column < COLUMNS; column++) {
+                    magnitudes.set(row, column, random.nextFloat() * 100f);
+                }
+            }
+            final float[] samples = new float[getSamplesLength()];
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = random.nextFloat() * 2f - 1f;
+            }
+            previous = new Channel(song, magnitudes, new WindowedSamples(samples, samples.length, ROWS, SLICE_LENGTH, HOP_SIZE));
+            song.getChannels().add(previous);
+        }
+        return song;
+    }
+
+    private static int getSamplesLength() {
+        return (ROWS - 1) * HOP_SIZE + SLICE_LENGTH;
+    }
+
+    private static File createAudioFile(final Path directory) throws IOException {
+        final byte[] content = new byte[10000];
+        new Random(0).nextBytes(content);
+        return Files.write(directory.resolve("audio.wav"), content).toFile();
+    }
+
+    private static void assertMagnitudesEqual(final Matrix expected, final Matrix actual) {
+        assertEquals(expected.getNumberOfRows(), actual.getNumberOfRows());
+        assertEquals(expected.getNumberOfColumns(), actual.getNumberOfColumns());
+        for (int row = 0; row < expected.getNumberOfRows(); row++) {
+            assertArrayEquals(expected.getRow(row), actual.getRow(row), 0f);
+        }
+    }
+
+    private static void assertSamplesEqual(final WindowedSamples expected, final WindowedSamples actual) {
+        assertEquals(expected.getLength(), actual.getLength());
+        assertEquals(expected.getNumberOfRows(), actual.getNumberOfRows());
+        assertArrayEquals(Arrays.copyOf(expected.getSamples(), expected.getLength()),
+                Arrays.copyOf(actual.getSamples(), actual.getLength()), 0f);
+    }
+
+    private static void delete(final Path directory) throws IOException {
+        try (final Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * =================================================
+ * Copyright 2015 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.tagtraum.separator.dsp;
+
+import com.tagtraum.jipes.audio.RealAudioBuffer;
+import org.junit.Assume;
+import org.junit.Test;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link WaveFileWriter}.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class WaveFileWriterTest {
+
+    private static final AudioFormat STEREO = new AudioFormat(22050, 16, 2, true, false);
+
+    @Test
+    public void testHeaderAndData() throws Exception {
+        final Path directory = Files.createTempDirectory("WaveFileWriterTest");
+        try {
+            final File file = directory.resolve("test.wav").toFile();
+            final float[] samples = new float[1000];
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = (float) Math.floor(Math.sin(i * 0.01) * 30000);
+            }
+            // out of range samples are clamped
+            samples[0] = 40000;
+            samples[1] = -40000;
+            try (final WaveFileWriter writer = new WaveFileWriter(file, 2)) {
+                for (int i = 0; i < 3; i++) {
+                    writer.process(new RealAudioBuffer(i * 500, samples, STEREO));
+                }
+                writer.flush();
+            }
+            final int dataLength = 3 * samples.length * 2;
+            assertEquals(44 + dataLength, file.length());
+
+            final ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals("RIFF", ascii(bytes, 0));
+            assertEquals(36 + dataLength, bytes.getInt(4));
+            assertEquals("WAVE", ascii(bytes, 8));
+            assertEquals("fmt ", ascii(bytes, 12));
+            assertEquals(16, bytes.getInt(16));
+            assertEquals(1, bytes.getShort(20));
+            assertEquals(2, bytes.getShort(22));
+            assertEquals(22050, bytes.getInt(24));
+            assertEquals(22050 * 2 * 2, bytes.getInt(28));
+            assertEquals(4, bytes.getShort(32));
+            assertEquals(16, bytes.getShort(34));
+            assertEquals("data", ascii(bytes, 36));
+            assertEquals(dataLength, bytes.getInt(40));
+            assertEquals(Short.MAX_VALUE - 5, bytes.getShort(44));
+            assertEquals(Short.MIN_VALUE + 5, bytes.getShort(46));
+            for (int i = 2; i < samples.length; i++) {
+                assertEquals((int) samples[i], bytes.getShort(44 + 2 * samples.length * 2 + i * 2));
+            }
+
+            try (final AudioInputStream in = AudioSystem.getAudioInputStream(file)) {
+                assertEquals(STEREO.getSampleRate(), in.getFormat().getSampleRate(), 0f);
+                assertEquals(2, in.getFormat().getChannels());
+                assertEquals(16, in.getFormat().getSampleSizeInBits());
+                assertEquals(3 * samples.length / 2, in.getFrameLength());
+            }
+            assertEquals(1, count(directory));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testCloseWithoutFlushDeletesIncompleteFile() throws Exception {
+        final Path directory = Files.createTempDirectory("WaveFileWriterTest");
+        try {
+            final Path file = directory.resolve("test.wav");
+            Files.write(file, new byte[]{1, 2, 3});
+            try (final WaveFileWriter writer = new WaveFileWriter(file.toFile(), 2)) {
+                writer.process(new RealAudioBuffer(0, new float[100], STEREO));
+            }
+            assertFalse(Files.exists(file));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testCloseWithoutAudioKeepsExistingFile() throws Exception {
+        final Path directory = Files.createTempDirectory("WaveFileWriterTest");
+        try {
+            final Path file = directory.resolve("test.wav");
+            final byte[] existing = {1, 2, 3};
+            Files.write(file, existing);
+            new WaveFileWriter(file.toFile(), 2).close();
+            assertArrayEquals(existing, Files.readAllBytes(file));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testDefaultPermissions() throws Exception {
+        final Path directory = Files.createTempDirectory("WaveFileWriterTest");
+        try {
+            Assume.assumeTrue(Files.getFileStore(directory).supportsFileAttributeView(PosixFileAttributeView.class));
+            final Path file = directory.resolve("test.wav");
+            try (final WaveFileWriter writer = new WaveFileWriter(file.toFile(), 2)) {
+                writer.process(new RealAudioBuffer(0, new float[100], STEREO));
+                writer.flush();
+            }
+            // same permissions as any other new file, i.e. subject to the umask only
+            final Path other = Files.createFile(directory.resolve("other.wav"));
+            assertEquals(Files.getPosixFilePermissions(other), Files.getPosixFilePermissions(file));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnsupportedSampleSize() throws Exception {
+        final Path directory = Files.createTempDirectory("WaveFileWriterTest");
+        try (final WaveFileWriter writer = new WaveFileWriter(directory.resolve("test.wav").toFile(), 1)) {
+            writer.process(new RealAudioBuffer(0, new float[100], new AudioFormat(44100, 24, 1, true, false)));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static String ascii(final ByteBuffer bytes, final int offset) {
+        final char[] chars = new char[4];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) bytes.get(offset + i);
+        }
+        return new String(chars);
+    }
+
+    private static long count(final Path directory) throws IOException {
+        try (final Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    private static void delete(final Path directory) throws IOException {
+        try (final Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}